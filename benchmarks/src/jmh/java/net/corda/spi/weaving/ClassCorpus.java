@@ -0,0 +1,199 @@
+package net.corda.spi.weaving;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import static org.objectweb.asm.ClassWriter.COMPUTE_FRAMES;
+import static org.objectweb.asm.Opcodes.ACC_ABSTRACT;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ASTORE;
+import static org.objectweb.asm.Opcodes.GOTO;
+import static org.objectweb.asm.Opcodes.IFEQ;
+import static org.objectweb.asm.Opcodes.ILOAD;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.POP;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V11;
+
+/**
+ * The classes that we weave: either every class inside woodstox-core, almost
+ * none of which invoke an XML factory, or else generated classes with deep
+ * hierarchies and many factory calls, all of which must be woven.
+ */
+final class ClassCorpus {
+    private static final String GENERATED_PACKAGE = "net/corda/spi/generated/";
+    private static final String HIERARCHY_ROOT = "java/util/AbstractMap";
+    private static final String[][] FACTORY_CALLS = {
+        { "javax/xml/stream/XMLInputFactory", "newFactory" },
+        { "javax/xml/stream/XMLInputFactory", "newInstance" },
+        { "javax/xml/stream/XMLOutputFactory", "newFactory" },
+        { "javax/xml/stream/XMLOutputFactory", "newInstance" },
+        { "javax/xml/stream/XMLEventFactory", "newFactory" },
+        { "javax/xml/stream/XMLEventFactory", "newInstance" }
+    };
+
+    private final Map<String, byte[]> classes;
+
+    private ClassCorpus(Map<String, byte[]> classes) {
+        this.classes = classes;
+    }
+
+    /**
+     * @return The name of each class, mapped to its bytes.
+     */
+    @Nonnull
+    Map<String, byte[]> getClasses() {
+        return classes;
+    }
+
+    /**
+     * @return A class loader which finds every class in this
+     * corpus as a resource, but which never defines any of them.
+     */
+    @Nonnull
+    ClassLoader createResourceLoader() {
+        final Map<String, byte[]> resources = new HashMap<>();
+        classes.forEach((name, bytes) -> resources.put(name.replace('.', '/') + ".class", bytes));
+        return new ClassLoader(ClassCorpus.class.getClassLoader()) {
+            @Override
+            @Nullable
+            public InputStream getResourceAsStream(String name) {
+                final byte[] bytes = resources.get(name);
+                return bytes == null ? super.getResourceAsStream(name) : new ByteArrayInputStream(bytes);
+            }
+        };
+    }
+
+    /**
+     * @return Every class inside the woodstox-core jar.
+     */
+    @Nonnull
+    static ClassCorpus woodstox() throws IOException, URISyntaxException {
+        final Path woodstoxJar = Paths.get(com.ctc.wstx.api.WstxInputProperties.class
+            .getProtectionDomain().getCodeSource().getLocation().toURI());
+        final Map<String, byte[]> classes = new LinkedHashMap<>();
+        try (JarFile jar = new JarFile(woodstoxJar.toFile())) {
+            final Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                final JarEntry entry = entries.nextElement();
+                final String name = entry.getName();
+                if (name.endsWith(".class") && !name.startsWith("META-INF/") && !name.endsWith("module-info.class")) {
+                    try (InputStream input = jar.getInputStream(entry)) {
+                        classes.put(name.substring(0, name.length() - 6).replace('/', '.'), input.readAllBytes());
+                    }
+                }
+            }
+        }
+        return new ClassCorpus(classes);
+    }
+
+    /**
+     * Generates a chain of {@code depth} classes, each extending the one before,
+     * and {@code callers} classes that each have {@code methods} methods. Every
+     * method chooses between two classes from this chain before invoking an XML
+     * factory, so that recomputing its stack map frames requires their common
+     * super class.
+     */
+    @Nonnull
+    static ClassCorpus generated(int depth, int callers, int methods) {
+        final Map<String, String> superClasses = new HashMap<>();
+        final Map<String, byte[]> classes = new LinkedHashMap<>();
+
+        String superName = HIERARCHY_ROOT;
+        for (int level = 0; level < depth; ++level) {
+            final String name = GENERATED_PACKAGE + "Level" + level;
+            final ClassWriter cw = new ClassWriter(0);
+            cw.visit(V11, ACC_PUBLIC | ACC_ABSTRACT, name, null, superName, null);
+            cw.visitEnd();
+            classes.put(name.replace('/', '.'), cw.toByteArray());
+            superClasses.put(name, superName);
+            superName = name;
+        }
+
+        for (int caller = 0; caller < callers; ++caller) {
+            final String name = GENERATED_PACKAGE + "Caller" + caller;
+            final ClassWriter cw = new HierarchyClassWriter(superClasses);
+            cw.visit(V11, ACC_PUBLIC, name, null, "java/lang/Object", null);
+            for (int method = 0; method < methods; ++method) {
+                final String first = GENERATED_PACKAGE + "Level" + (depth - 1 - (method % depth));
+                final String second = GENERATED_PACKAGE + "Level" + ((method * 7 + caller) % depth);
+                final String[] factoryCall = FACTORY_CALLS[(caller + method) % FACTORY_CALLS.length];
+                generateCaller(cw, "call" + method, first, second, factoryCall);
+            }
+            cw.visitEnd();
+            classes.put(name.replace('/', '.'), cw.toByteArray());
+        }
+        return new ClassCorpus(classes);
+    }
+
+    /**
+     * <pre>
+     * static void callN(boolean flag, First first, Second second) {
+     *     Object chosen = flag ? first : second;
+     *     Factory.newFactory();
+     * }
+     * </pre>
+     */
+    private static void generateCaller(@Nonnull ClassWriter cw, String methodName, String first, String second, String[] factoryCall) {
+        final String desc = "(ZL" + first + ";L" + second + ";)V";
+        final MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, methodName, desc, null, null);
+        mv.visitCode();
+        final Label useSecond = new Label();
+        final Label chosen = new Label();
+        mv.visitVarInsn(ILOAD, 0);
+        mv.visitJumpInsn(IFEQ, useSecond);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitJumpInsn(GOTO, chosen);
+        mv.visitLabel(useSecond);
+        mv.visitVarInsn(ALOAD, 2);
+        mv.visitLabel(chosen);
+        mv.visitVarInsn(ASTORE, 3);
+        mv.visitMethodInsn(INVOKESTATIC, factoryCall[0], factoryCall[1], "()L" + factoryCall[0] + ';', false);
+        mv.visitInsn(POP);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /**
+     * Computes frames for our generated classes without loading any of them.
+     */
+    private static final class HierarchyClassWriter extends ClassWriter {
+        private final Map<String, String> superClasses;
+
+        HierarchyClassWriter(Map<String, String> superClasses) {
+            super(COMPUTE_FRAMES);
+            this.superClasses = superClasses;
+        }
+
+        @Override
+        protected String getCommonSuperClass(String type1, String type2) {
+            for (String a = type1; a != null; a = superClasses.get(a)) {
+                for (String b = type2; b != null; b = superClasses.get(b)) {
+                    if (a.equals(b)) {
+                        return a;
+                    }
+                }
+            }
+            return "java/lang/Object";
+        }
+    }
+}
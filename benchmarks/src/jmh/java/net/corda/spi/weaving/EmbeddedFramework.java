@@ -0,0 +1,181 @@
+package net.corda.spi.weaving;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.launch.FrameworkFactory;
+
+import javax.annotation.Nonnull;
+import javax.xml.stream.XMLInputFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import static java.util.logging.Level.WARNING;
+import static org.objectweb.asm.ClassWriter.COMPUTE_MAXS;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+import static org.objectweb.asm.Opcodes.ARETURN;
+import static org.objectweb.asm.Opcodes.H_INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.V11;
+import static org.osgi.framework.Constants.BUNDLE_MANIFESTVERSION;
+import static org.osgi.framework.Constants.BUNDLE_SYMBOLICNAME;
+import static org.osgi.framework.Constants.FRAMEWORK_BSNVERSION;
+import static org.osgi.framework.Constants.FRAMEWORK_BSNVERSION_MULTIPLE;
+import static org.osgi.framework.Constants.FRAMEWORK_STORAGE;
+import static org.osgi.framework.Constants.FRAMEWORK_STORAGE_CLEAN;
+import static org.osgi.framework.Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT;
+import static org.osgi.framework.Constants.IMPORT_PACKAGE;
+
+/**
+ * An Apache Felix framework containing this weaver and SPI-Fly as framework
+ * extensions, and as many copies of woodstox-core as we want XML factory
+ * providers. The bundles themselves are packaged inside the benchmark jar.
+ */
+final class EmbeddedFramework {
+    private static final String BUNDLES = "/bundles/";
+    private static final String[] EXTENSIONS = {
+        "org.apache.aries.spifly.dynamic.framework.extension.jar",
+        "corda-extra-spi-weaver.jar"
+    };
+    private static final String PROVIDER_API = "stax2-api.jar";
+    private static final String PROVIDER = "woodstox-core.jar";
+    private static final String CONSUMER_CLASS = "net/corda/spi/consumer/Consumer";
+    static final String NEW_FACTORY = "newFactory";
+
+    // Keep a strong reference, so that this level cannot be garbage collected.
+    private static final Logger SPIFLY_LOGGER = Logger.getLogger("org.apache.aries.spifly");
+
+    private final Path storage;
+    private final Framework framework;
+
+    /**
+     * Starts a framework with {@code providers} bundles that each
+     * provide every XML factory via the OSGi ServiceLoader Mediator.
+     *
+     * @param frameworkProperties Extra framework properties, to configure the weaver.
+     */
+    EmbeddedFramework(int providers, @Nonnull Map<String, String> frameworkProperties) throws IOException, BundleException {
+        SPIFLY_LOGGER.setLevel(WARNING);
+
+        storage = Files.createTempDirectory("felix");
+        final Map<String, String> properties = new HashMap<>(frameworkProperties);
+        properties.put(FRAMEWORK_STORAGE, storage.toString());
+        properties.put(FRAMEWORK_STORAGE_CLEAN, FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+        // Allow us to install the same provider bundle more than once.
+        properties.put(FRAMEWORK_BSNVERSION, FRAMEWORK_BSNVERSION_MULTIPLE);
+
+        final FrameworkFactory factory = ServiceLoader.load(FrameworkFactory.class).findFirst()
+            .orElseThrow(() -> new IllegalStateException("No OSGi framework found"));
+        framework = factory.newFramework(properties);
+        framework.init();
+
+        // Framework extensions must be installed before the framework starts.
+        final BundleContext context = framework.getBundleContext();
+        for (String extension : EXTENSIONS) {
+            install(context, extension, extension);
+        }
+        framework.start();
+
+        final List<Bundle> bundles = new ArrayList<>();
+        if (providers > 0) {
+            bundles.add(install(context, PROVIDER_API, PROVIDER_API));
+        }
+        for (int i = 0; i < providers; ++i) {
+            bundles.add(install(context, PROVIDER + '#' + i, PROVIDER));
+        }
+        for (Bundle bundle : bundles) {
+            bundle.start();
+        }
+    }
+
+    @Nonnull
+    private static Bundle install(@Nonnull BundleContext context, @Nonnull String location, @Nonnull String resourceName) throws IOException, BundleException {
+        final InputStream input = EmbeddedFramework.class.getResourceAsStream(BUNDLES + resourceName);
+        if (input == null) {
+            throw new IOException("Missing bundle " + resourceName);
+        }
+        try (input) {
+            return context.installBundle(location, input);
+        }
+    }
+
+    /**
+     * Installs and starts a bundle containing a single class, so that we
+     * can invoke {@link Util} on that bundle's behalf. This class also has
+     * a static {@code newFactory()} method, containing the same call to
+     * {@link XMLInputFactory#newFactory()} that woven code would contain
+     * with {@code net.corda.spi-weaver.invokedynamic=true}.
+     *
+     * @return The class inside this new consumer bundle.
+     */
+    @Nonnull
+    Class<?> installConsumer(@Nonnull String symbolicName) throws IOException, BundleException, ClassNotFoundException {
+        final ClassWriter cw = new ClassWriter(COMPUTE_MAXS);
+        cw.visit(V11, ACC_PUBLIC, CONSUMER_CLASS, null, "java/lang/Object", null);
+        final Type factoryType = Type.getType(XMLInputFactory.class);
+        final MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, NEW_FACTORY, Type.getMethodDescriptor(factoryType), null, null);
+        mv.visitCode();
+        mv.visitInvokeDynamicInsn(NEW_FACTORY, Type.getMethodDescriptor(factoryType), new Handle(
+            H_INVOKESTATIC,
+            Type.getInternalName(Util.class),
+            "bootstrapXMLFactory",
+            MethodType.methodType(CallSite.class, MethodHandles.Lookup.class, String.class, MethodType.class, String.class)
+                .toMethodDescriptorString(),
+            false
+        ), "");
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+
+        final Manifest manifest = new Manifest();
+        final Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.putValue(BUNDLE_MANIFESTVERSION, "2");
+        attributes.putValue(BUNDLE_SYMBOLICNAME, symbolicName);
+        attributes.putValue(IMPORT_PACKAGE, "javax.xml.stream," + Util.class.getPackageName());
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (JarOutputStream jar = new JarOutputStream(bytes, manifest)) {
+            jar.putNextEntry(new JarEntry(CONSUMER_CLASS + ".class"));
+            jar.write(cw.toByteArray());
+            jar.closeEntry();
+        }
+
+        final Bundle consumer = framework.getBundleContext().installBundle(symbolicName, new ByteArrayInputStream(bytes.toByteArray()));
+        consumer.start();
+        return consumer.loadClass(CONSUMER_CLASS.replace('/', '.'));
+    }
+
+    void stop() throws BundleException, InterruptedException, IOException {
+        framework.stop();
+        framework.waitForStop(0);
+        try (Stream<Path> files = Files.walk(storage)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package net.corda.spi.weaving;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.hooks.weaving.WeavingHook;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWiring;
+
+import javax.annotation.Nonnull;
+import java.lang.reflect.Proxy;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.UUID;
+
+import static java.util.Collections.emptyList;
+import static org.osgi.framework.Bundle.ACTIVE;
+import static org.osgi.framework.Constants.FRAMEWORK_UUID;
+
+/**
+ * Just enough of an OSGi framework for {@link DynamicExtraWeavingActivator}
+ * to start and register its {@link WeavingHook}, so that we can benchmark
+ * weaving without launching a real framework.
+ */
+final class FrameworkStubs {
+    private static final long CONSUMER_BUNDLE_ID = 1;
+
+    // The bundle and its wiring refer to each other.
+    private Bundle consumerBundle;
+    private BundleWiring consumerWiring;
+    private final BundleContext context;
+    private WeavingHook weavingHook;
+
+    /**
+     * @param consumerName The symbolic name of the consumer bundle.
+     * @param classLoader The consumer bundle's class loader.
+     * @param properties The framework properties.
+     */
+    FrameworkStubs(@Nonnull String consumerName, @Nonnull ClassLoader classLoader, @Nonnull Map<String, String> properties) {
+        final String frameworkUUID = UUID.randomUUID().toString();
+        final BundleRevision revision = stub(BundleRevision.class, (method, args) -> {
+            if ("getTypes".equals(method)) {
+                return 0;
+            }
+            return null;
+        });
+        consumerBundle = stub(Bundle.class, (method, args) -> {
+            switch (method) {
+            case "getSymbolicName":
+                return consumerName;
+            case "getBundleId":
+                return CONSUMER_BUNDLE_ID;
+            case "getState":
+                return ACTIVE;
+            case "getHeaders":
+                return new Hashtable<String, String>();
+            case "adapt":
+                return args[0] == BundleWiring.class ? consumerWiring : null;
+            default:
+                return null;
+            }
+        });
+        consumerWiring = stub(BundleWiring.class, (method, args) -> {
+            switch (method) {
+            case "getBundle":
+                return consumerBundle;
+            case "getClassLoader":
+                return classLoader;
+            case "getRevision":
+                return revision;
+            case "getRequiredWires":
+            case "getCapabilities":
+                return emptyList();
+            case "isCurrent":
+            case "isInUse":
+                return true;
+            default:
+                return null;
+            }
+        });
+        final ServiceRegistration<?> registration = stub(ServiceRegistration.class, (method, args) -> null);
+        context = stub(BundleContext.class, (method, args) -> {
+            switch (method) {
+            case "getProperty":
+                return FRAMEWORK_UUID.equals(args[0]) ? frameworkUUID : properties.get((String) args[0]);
+            case "getBundles":
+                return new Bundle[] { consumerBundle };
+            case "registerService":
+                if (args[0] == WeavingHook.class) {
+                    weavingHook = (WeavingHook) args[1];
+                }
+                return registration;
+            default:
+                return null;
+            }
+        });
+    }
+
+    @Nonnull
+    BundleContext getContext() {
+        return context;
+    }
+
+    @Nonnull
+    BundleWiring getConsumerWiring() {
+        return consumerWiring;
+    }
+
+    /**
+     * @return The weaving hook, once the activator has registered it.
+     */
+    @Nonnull
+    WeavingHook getWeavingHook() {
+        if (weavingHook == null) {
+            throw new IllegalStateException("No weaving hook registered");
+        }
+        return weavingHook;
+    }
+
+    @FunctionalInterface
+    interface Answer {
+        Object answer(String method, Object[] args);
+    }
+
+    /**
+     * Implements an interface using a {@link Proxy}, where each
+     * proxy is equal only to itself.
+     */
+    @Nonnull
+    static <T> T stub(@Nonnull Class<T> type, @Nonnull Answer answer) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+            switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return type.getSimpleName() + '@' + Integer.toHexString(System.identityHashCode(proxy));
+            default:
+                return answer.answer(method.getName(), args);
+            }
+        }));
+    }
+}
@@ -0,0 +1,70 @@
+package net.corda.spi.weaving;
+
+import org.osgi.framework.hooks.weaving.WovenClass;
+import org.osgi.framework.wiring.BundleWiring;
+
+import javax.annotation.Nonnull;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A class that is about to be defined, as the framework would present it to a weaving hook.
+ */
+final class StubWovenClass implements WovenClass {
+    private final String className;
+    private final BundleWiring bundleWiring;
+    private final List<String> dynamicImports = new ArrayList<>();
+    private byte[] bytes;
+
+    StubWovenClass(@Nonnull String className, @Nonnull byte[] bytes, @Nonnull BundleWiring bundleWiring) {
+        this.className = className;
+        this.bytes = bytes;
+        this.bundleWiring = bundleWiring;
+    }
+
+    @Override
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public void setBytes(byte[] newBytes) {
+        bytes = newBytes;
+    }
+
+    @Override
+    public List<String> getDynamicImports() {
+        return dynamicImports;
+    }
+
+    @Override
+    public boolean isWeavingComplete() {
+        return false;
+    }
+
+    @Override
+    public String getClassName() {
+        return className;
+    }
+
+    @Override
+    public ProtectionDomain getProtectionDomain() {
+        return null;
+    }
+
+    @Override
+    public Class<?> getDefinedClass() {
+        return null;
+    }
+
+    @Override
+    public BundleWiring getBundleWiring() {
+        return bundleWiring;
+    }
+
+    @Override
+    public int getState() {
+        return TRANSFORMING;
+    }
+}
@@ -0,0 +1,112 @@
+package net.corda.spi.weaving;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.xml.stream.XMLInputFactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+
+import static java.lang.invoke.MethodType.methodType;
+import static java.util.Collections.singletonMap;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+/**
+ * Measures how long woven code takes to create an {@link XMLInputFactory}
+ * inside a real OSGi framework, compared with the unwoven call. With
+ * no provider bundles, {@link Util} falls back to the platform's factory.
+ * With one, it uses that bundle's class loader. With several, it must also
+ * create a {@link org.apache.aries.spifly.MultiDelegationClassloader}.
+ * With {@code directInstantiation}, {@link Util} invokes the provider's
+ * constructor itself instead. {@code linkedFactory} links an
+ * {@code INVOKEDYNAMIC} call site to the providers, instead of invoking
+ * {@link Util} every time.
+ * <p>
+ * {@link Contended} runs the same benchmarks from several threads at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UtilBenchmark {
+    private static final String FACTORY_ID = XMLInputFactory.class.getName();
+
+    // The JDK never falls back to its own factory when given a class loader,
+    // and so this must be one that finds woodstox-core on our class path.
+    private static final ClassLoader SPECIFIED_LOADER = UtilBenchmark.class.getClassLoader();
+
+    @Param({ "0", "1", "3" })
+    public int providers;
+
+    @Param({ "false", "true" })
+    public boolean directInstantiation;
+
+    private EmbeddedFramework framework;
+    private Class<?> consumer;
+    private MethodHandle linkedFactory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        framework = new EmbeddedFramework(providers, singletonMap(
+            "net.corda.spi-weaver.direct.instantiation", Boolean.toString(directInstantiation)
+        ));
+        consumer = framework.installConsumer("benchmark.consumer");
+        linkedFactory = MethodHandles.publicLookup().findStatic(
+            consumer, EmbeddedFramework.NEW_FACTORY, methodType(XMLInputFactory.class)
+        );
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        framework.stop();
+    }
+
+    /**
+     * What the consumer would do if it were not woven.
+     */
+    @Benchmark
+    public XMLInputFactory directFactory() {
+        return XMLInputFactory.newFactory();
+    }
+
+    @Benchmark
+    public XMLInputFactory directFactoryWithClassLoader() {
+        return XMLInputFactory.newFactory(FACTORY_ID, SPECIFIED_LOADER);
+    }
+
+    /**
+     * What the consumer does instead, once {@link TCCLSetterVisitor} has woven it.
+     */
+    @Benchmark
+    public XMLInputFactory wovenFactory() {
+        return Util.newXMLInputFactoryFactory(consumer);
+    }
+
+    @Benchmark
+    public XMLInputFactory wovenFactoryWithClassLoader() {
+        return Util.newXMLInputFactoryFactory(FACTORY_ID, SPECIFIED_LOADER, consumer);
+    }
+
+    @Benchmark
+    public XMLInputFactory linkedFactory() throws Throwable {
+        return (XMLInputFactory) linkedFactory.invokeExact();
+    }
+
+    @Threads(4)
+    public static class Contended extends UtilBenchmark {
+    }
+}
@@ -0,0 +1,127 @@
+package net.corda.spi.weaving;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.hooks.weaving.WeavingHook;
+import org.osgi.framework.wiring.BundleWiring;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.objectweb.asm.Opcodes.ASM9;
+
+/**
+ * Measures how many classes per millisecond the {@link DynamicExtraWeavingHook}
+ * can weave, from the {@link FactoryCallScanner} through {@link TCCLSetterVisitor}
+ * to {@link OSGiFriendlyClassWriter}. The {@code gc} profiler reports how much
+ * each class allocates.
+ * <p>
+ * The {@code woodstox} corpus is almost entirely classes that do not invoke
+ * any XML factory, whereas every class in the {@code generated} corpus must be
+ * woven. Comparing the two shows the cost of non-matching and matching classes.
+ * With {@code memoryCache}, each class is woven only once and then
+ * found in the {@link MemoryWeavingCache} every time after that.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WeavingBenchmark {
+    private static final String CONSUMER_NAME = "benchmark.consumer";
+    private static final ClassVisitor EMPTY_VISITOR = new ClassVisitor(ASM9) {};
+
+    @Param({ "woodstox", "generated" })
+    public String corpus;
+
+    @Param({ "false", "true" })
+    public boolean preserveFrames;
+
+    @Param({ "false", "true" })
+    public boolean memoryCache;
+
+    private DynamicExtraWeavingActivator activator;
+    private FrameworkStubs framework;
+    private WeavingHook weavingHook;
+    private BundleWiring consumerWiring;
+    private String[] classNames;
+    private byte[][] classBytes;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        final ClassCorpus classCorpus = "woodstox".equals(corpus)
+            ? ClassCorpus.woodstox()
+            : ClassCorpus.generated(20, 50, 20);
+        classNames = classCorpus.getClasses().keySet().toArray(new String[0]);
+        classBytes = classCorpus.getClasses().values().toArray(new byte[0][]);
+
+        final Map<String, String> properties = new HashMap<>();
+        properties.put("net.corda.spi-weaver.auto.consumers", CONSUMER_NAME);
+        properties.put("net.corda.spi-weaver.preserve.frames", Boolean.toString(preserveFrames));
+        if (memoryCache) {
+            properties.put("net.corda.spi-weaver.memory.cache.size", "256m");
+        }
+        framework = new FrameworkStubs(CONSUMER_NAME, classCorpus.createResourceLoader(), properties);
+
+        activator = new DynamicExtraWeavingActivator();
+        activator.start(framework.getContext());
+        weavingHook = framework.getWeavingHook();
+        consumerWiring = framework.getConsumerWiring();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        activator.stop(framework.getContext());
+    }
+
+    /**
+     * Weaves each class in the corpus in turn, as the framework would.
+     */
+    @Benchmark
+    public byte[] weaveClass() {
+        final int index = nextIndex();
+        final StubWovenClass wovenClass = new StubWovenClass(classNames[index], classBytes[index], consumerWiring);
+        weavingHook.weave(wovenClass);
+        return wovenClass.getBytes();
+    }
+
+    /**
+     * Only scans each class's constant pool, which is all that
+     * the weaving hook need do for a non-matching class.
+     */
+    @Benchmark
+    public boolean scanClass() {
+        return FactoryCallScanner.mayInvokeFactory(classBytes[nextIndex()]);
+    }
+
+    /**
+     * Only reads each class with ASM, which is the least
+     * that weaving any matching class can cost.
+     */
+    @Benchmark
+    public void readClass() {
+        new ClassReader(classBytes[nextIndex()]).accept(EMPTY_VISITOR, 0);
+    }
+
+    private int nextIndex() {
+        final int index = next;
+        next = (index + 1 == classBytes.length) ? 0 : index + 1;
+        return index;
+    }
+}
@@ -0,0 +1,84 @@
+import org.gradle.api.DefaultTask
+import org.gradle.api.GradleException
+import org.gradle.api.file.ConfigurableFileCollection
+import org.gradle.api.file.RegularFileProperty
+import org.gradle.api.logging.Logging
+import org.gradle.api.tasks.CacheableTask
+import org.gradle.api.tasks.Classpath
+import org.gradle.api.tasks.InputFile
+import org.gradle.api.tasks.OutputFile
+import org.gradle.api.tasks.PathSensitive
+import org.gradle.api.tasks.PathSensitivity
+import org.gradle.api.tasks.TaskAction
+import org.gradle.workers.WorkAction
+import org.gradle.workers.WorkParameters
+import org.gradle.workers.WorkerExecutor
+
+import javax.inject.Inject
+
+/**
+ * Weaves a bundle jar ahead of time, using the corda-extra-spi-weaver jar
+ * and its dependencies from {@link #getWeaverClasspath()}. For example:
+ * <pre>
+ * tasks.register('wovenJar', WeaveBundleJar) {
+ *     weaverClasspath.from configurations.spiWeaver
+ *     inputJar = tasks.named('jar', Jar).flatMap { it.archiveFile }
+ *     outputJar = layout.buildDirectory.file('woven/my-bundle.jar')
+ * }
+ * </pre>
+ */
+@CacheableTask
+abstract class WeaveBundleJar extends DefaultTask {
+    WeaveBundleJar() {
+        group = 'build'
+        description = 'Weaves a bundle jar for its SPI consumers ahead of time.'
+    }
+
+    @Classpath
+    abstract ConfigurableFileCollection getWeaverClasspath()
+
+    @InputFile
+    @PathSensitive(PathSensitivity.NONE)
+    abstract RegularFileProperty getInputJar()
+
+    @OutputFile
+    abstract RegularFileProperty getOutputJar()
+
+    @Inject
+    abstract WorkerExecutor getWorkerExecutor()
+
+    @TaskAction
+    void weave() {
+        // Load the weaver apart from Gradle's own copies of ASM and bndlib.
+        def queue = workerExecutor.classLoaderIsolation { spec ->
+            spec.classpath.from(weaverClasspath)
+        }
+        queue.submit(Weave) { WeaveParameters parameters ->
+            parameters.inputJar.set(this.inputJar)
+            parameters.outputJar.set(this.outputJar)
+        }
+    }
+
+    static interface WeaveParameters extends WorkParameters {
+        RegularFileProperty getInputJar()
+        RegularFileProperty getOutputJar()
+    }
+
+    static abstract class Weave implements WorkAction<WeaveParameters> {
+        private static final String WEAVER_CLASS = 'net.corda.spi.weaving.BundleJarWeaver'
+
+        @Override
+        void execute() {
+            def input = parameters.inputJar.get().asFile
+            def output = parameters.outputJar.get().asFile
+            def weaverClass = Class.forName(WEAVER_CLASS, true, Weave.classLoader)
+            int wovenClasses
+            try {
+                wovenClasses = weaverClass.forAutoConsumers().weave(input.toPath(), output.toPath())
+            } catch (Exception e) {
+                throw new GradleException("Cannot weave $input", e)
+            }
+            Logging.getLogger(WeaveBundleJar).info('Wove {} classes into {}', wovenClasses, output)
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package net.corda.spi.weaving;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compact map from bundle ID to a value, for state that we keep for every
+ * installed bundle. The IDs and values live in two arrays, which we probe
+ * linearly, and so each entry costs a {@code long} and a reference rather than
+ * a {@link java.util.concurrent.ConcurrentHashMap} node and a boxed key.
+ * <p>
+ * Bundles are added and removed far less often than their classes are woven,
+ * and so writers simply take this map's lock. Readers do not, and instead check
+ * that no writer modified the table while they were probing it. They only take
+ * the lock when one did.
+ */
+final class BundleIdMap<V> {
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Odd while a writer is modifying the table.
+    private volatile int version;
+    private volatile Table table = new Table(INITIAL_CAPACITY);
+    private int size;
+
+    @Nullable
+    V get(long bundleId) {
+        final int stamp = version;
+        if ((stamp & 1) == 0) {
+            final Object value = table.get(bundleId);
+            // Finish reading the table before we check the version again.
+            VarHandle.acquireFence();
+            if (stamp == version) {
+                return cast(value);
+            }
+        }
+        synchronized (this) {
+            return cast(table.get(bundleId));
+        }
+    }
+
+    /**
+     * @return The existing value for this bundle, or {@code null} if we added this one.
+     */
+    @Nullable
+    synchronized V putIfAbsent(long bundleId, @Nonnull V value) {
+        final Object existing = table.get(bundleId);
+        if (existing != null) {
+            return cast(existing);
+        }
+
+        beginWrite();
+        try {
+            if (2 * (size + 1) > table.capacity()) {
+                table = table.resize(2 * table.capacity());
+            }
+            table.put(bundleId, value);
+            ++size;
+        } finally {
+            endWrite();
+        }
+        return null;
+    }
+
+    /**
+     * @return The previous value for this bundle, if any.
+     */
+    @Nullable
+    synchronized V put(long bundleId, @Nonnull V value) {
+        final Object existing = table.get(bundleId);
+        if (existing == null) {
+            return putIfAbsent(bundleId, value);
+        }
+
+        beginWrite();
+        try {
+            table.remove(bundleId);
+            table.put(bundleId, value);
+        } finally {
+            endWrite();
+        }
+        return cast(existing);
+    }
+
+    @Nullable
+    synchronized V remove(long bundleId) {
+        if (table.get(bundleId) == null) {
+            return null;
+        }
+
+        beginWrite();
+        try {
+            --size;
+            return cast(table.remove(bundleId));
+        } finally {
+            endWrite();
+        }
+    }
+
+    /**
+     * @return A snapshot of every value, in no particular order.
+     */
+    @Nonnull
+    synchronized List<V> values() {
+        final List<V> values = new ArrayList<>(size);
+        for (Object value : table.values) {
+            if (value != null) {
+                values.add(cast(value));
+            }
+        }
+        return values;
+    }
+
+    synchronized void clear() {
+        beginWrite();
+        try {
+            table = new Table(INITIAL_CAPACITY);
+            size = 0;
+        } finally {
+            endWrite();
+        }
+    }
+
+    private void beginWrite() {
+        ++version;
+        // Readers must see the odd version before any of our writes.
+        VarHandle.storeStoreFence();
+    }
+
+    private void endWrite() {
+        ++version;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> V cast(Object value) {
+        return (V) value;
+    }
+
+    /**
+     * An open addressing table, which is never more than half full.
+     * An empty slot has a {@code null} value.
+     */
+    private static final class Table {
+        private final long[] keys;
+        private final Object[] values;
+        private final int mask;
+
+        Table(int capacity) {
+            keys = new long[capacity];
+            values = new Object[capacity];
+            mask = capacity - 1;
+        }
+
+        int capacity() {
+            return keys.length;
+        }
+
+        private int indexOf(long key) {
+            final long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+
+        @Nullable
+        Object get(long key) {
+            int index = indexOf(key);
+            // A reader racing with a writer may see a full table,
+            // so never probe more slots than there are.
+            for (int probes = 0; probes <= mask; ++probes) {
+                final Object value = values[index];
+                if (value == null) {
+                    return null;
+                } else if (keys[index] == key) {
+                    return value;
+                }
+                index = (index + 1) & mask;
+            }
+            return null;
+        }
+
+        void put(long key, @Nonnull Object value) {
+            int index = indexOf(key);
+            while (values[index] != null) {
+                index = (index + 1) & mask;
+            }
+            keys[index] = key;
+            values[index] = value;
+        }
+
+        /**
+         * Removes this key and then moves any later entries of the same
+         * cluster back, so that every probe still ends at an empty slot.
+         */
+        @Nullable
+        Object remove(long key) {
+            int index = indexOf(key);
+            while (values[index] != null && keys[index] != key) {
+                index = (index + 1) & mask;
+            }
+            final Object removed = values[index];
+            values[index] = null;
+
+            int next = (index + 1) & mask;
+            while (values[next] != null) {
+                final int home = indexOf(keys[next]);
+                // Move this entry unless its home lies cyclically within (index, next].
+                if (((next - home) & mask) >= ((next - index) & mask)) {
+                    keys[index] = keys[next];
+                    values[index] = values[next];
+                    values[next] = null;
+                    index = next;
+                }
+                next = (next + 1) & mask;
+            }
+            return removed;
+        }
+
+        @Nonnull
+        Table resize(int capacity) {
+            final Table resized = new Table(capacity);
+            for (int i = 0; i < values.length; ++i) {
+                if (values[i] != null) {
+                    resized.put(keys[i], values[i]);
+                }
+            }
+            return resized;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package net.corda.spi.weaving;
+
+import aQute.bnd.header.OSGiHeader;
+import org.apache.aries.spifly.WeavingData;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.osgi.framework.InvalidSyntaxException;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static org.objectweb.asm.ClassWriter.COMPUTE_MAXS;
+import static org.osgi.framework.Constants.DYNAMICIMPORT_PACKAGE;
+
+/**
+ * Weaves a bundle jar ahead of time, exactly as {@link DynamicExtraWeavingHook}
+ * would weave its classes with {@code net.corda.spi-weaver.preserve.frames=true}.
+ * The woven bundle's manifest is given the {@code DynamicImport-Package} that
+ * the woven classes need, and also a {@link #PRE_WOVEN_HEADER} header so that
+ * {@link DynamicExtraWeavingActivator} knows not to weave this bundle again.
+ * <p>
+ * This class only weaves. Build tools which run it should report the result
+ * themselves, e.g. {@code WeaveBundleJar} in this project's {@code buildSrc}.
+ */
+public final class BundleJarWeaver {
+    static final String PRE_WOVEN_HEADER = "Corda-SPI-Weaver-Woven";
+
+    private static final String CLASS_EXTENSION = ".class";
+    private static final String META_INF = "META-INF/";
+
+    private final Set<WeavingData> weavingData;
+
+    BundleJarWeaver(Set<WeavingData> weavingData) {
+        this.weavingData = weavingData;
+    }
+
+    /**
+     * @return A weaver for the same XML factory calls as {@code net.corda.spi-weaver.auto.consumers}.
+     * @throws InvalidSyntaxException if the weaver's own consumer requirement is invalid.
+     */
+    @Nonnull
+    public static BundleJarWeaver forAutoConsumers() throws InvalidSyntaxException {
+        return new BundleJarWeaver(
+            ConsumerHeaderProcessor.processRequireCapabilityHeader(DynamicExtraWeavingActivator.AUTO_CONSUMER_REQUIREMENT)
+        );
+    }
+
+    /**
+     * Writes a woven copy of the input jar, replacing any existing output jar.
+     *
+     * @return The number of classes that were woven.
+     * @throws IOException if either jar cannot be read or written, or if the input jar is signed.
+     */
+    public int weave(@Nonnull Path input, @Nonnull Path output) throws IOException {
+        final Manifest manifest;
+        final Map<JarEntry, byte[]> contents = new LinkedHashMap<>();
+        int wovenClasses = 0;
+        try (JarFile jar = new JarFile(input.toFile(), false)) {
+            manifest = jar.getManifest();
+            if (manifest == null) {
+                throw new IOException(input + " has no manifest");
+            }
+
+            final Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                final JarEntry entry = entries.nextElement();
+                final String name = entry.getName();
+                if (JarFile.MANIFEST_NAME.equalsIgnoreCase(name)) {
+                    continue;
+                } else if (isSignatureFile(name)) {
+                    throw new IOException("Cannot weave signed jar " + input);
+                }
+
+                byte[] bytes = null;
+                if (!entry.isDirectory()) {
+                    try (InputStream in = jar.getInputStream(entry)) {
+                        bytes = in.readAllBytes();
+                    }
+                    if (name.endsWith(CLASS_EXTENSION)) {
+                        final byte[] wovenBytes = weaveClass(bytes);
+                        if (wovenBytes != null) {
+                            bytes = wovenBytes;
+                            ++wovenClasses;
+                        }
+                    }
+                }
+                contents.put(entry, bytes);
+            }
+        }
+
+        // The manifest must be the first entry in the jar, but we
+        // only know what it contains once we've woven everything.
+        updateManifest(manifest.getMainAttributes(), wovenClasses > 0);
+
+        final Path tempOutput = Files.createTempFile(output.toAbsolutePath().getParent(), "woven", ".jar");
+        try {
+            try (JarOutputStream jarOut = new JarOutputStream(Files.newOutputStream(tempOutput), manifest)) {
+                for (Map.Entry<JarEntry, byte[]> content : contents.entrySet()) {
+                    final JarEntry entry = new JarEntry(content.getKey().getName());
+                    entry.setTime(content.getKey().getTime());
+                    jarOut.putNextEntry(entry);
+                    if (content.getValue() != null) {
+                        jarOut.write(content.getValue());
+                    }
+                    jarOut.closeEntry();
+                }
+            }
+            Files.move(tempOutput, output, REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempOutput);
+        }
+        return wovenClasses;
+    }
+
+    /**
+     * @return The woven class, or {@code null} if there was nothing to weave.
+     */
+    private byte[] weaveClass(@Nonnull byte[] classBytes) {
+        if (!FactoryCallScanner.mayInvokeFactory(classBytes)) {
+            return null;
+        }
+
+        // There are no bundle wirings at build time, and so we
+        // must preserve the existing stack map frames.
+        final ClassReader cr = new ClassReader(classBytes);
+        final ClassWriter cw = new ClassWriter(cr, COMPUTE_MAXS);
+        final TCCLSetterVisitor tsv = new TCCLSetterVisitor(cw, cr.getClassName(), weavingData,
+            TCCLSetterVisitor.findWovenMethods(cr, weavingData));
+        cr.accept(tsv, 0);
+        return tsv.isWoven() ? cw.toByteArray() : null;
+    }
+
+    private static void updateManifest(@Nonnull Attributes attributes, boolean isWoven) {
+        if (isWoven) {
+            final String utilPackage = Util.class.getPackageName();
+            final String dynamicImports = attributes.getValue(DYNAMICIMPORT_PACKAGE);
+            if (dynamicImports == null || dynamicImports.isBlank()) {
+                attributes.putValue(DYNAMICIMPORT_PACKAGE, utilPackage);
+            } else if (!OSGiHeader.parseHeader(dynamicImports).containsKey(utilPackage)) {
+                attributes.putValue(DYNAMICIMPORT_PACKAGE, dynamicImports + ',' + utilPackage);
+            }
+        }
+        attributes.putValue(PRE_WOVEN_HEADER, Boolean.TRUE.toString());
+    }
+
+    private static boolean isSignatureFile(@Nonnull String name) {
+        final String upperName = name.toUpperCase(Locale.ROOT);
+        return upperName.startsWith(META_INF) && upperName.indexOf('/', META_INF.length()) < 0 && (
+            upperName.endsWith(".SF") || upperName.endsWith(".RSA") || upperName.endsWith(".DSA") || upperName.endsWith(".EC")
+        );
+    }
+}
@@ -0,0 +1,108 @@
+package net.corda.spi.weaving;
+
+/**
+ * A snapshot of the statistics for a single consumer bundle.
+ * All durations are in nanoseconds.
+ */
+public final class BundleWeavingStatistics {
+    private final long bundleId;
+    private final String symbolicName;
+    private final long classesInspected;
+    private final long classesWoven;
+    private final long bytesIn;
+    private final long bytesOut;
+    private final long weaveNanos;
+    private final long maxWeaveNanos;
+    private final long weaveFailures;
+    private final long factoryCalls;
+    private final long factoryNanos;
+    private final long maxFactoryNanos;
+
+    BundleWeavingStatistics(
+        long bundleId,
+        String symbolicName,
+        long classesInspected,
+        long classesWoven,
+        long bytesIn,
+        long bytesOut,
+        long weaveNanos,
+        long maxWeaveNanos,
+        long weaveFailures,
+        long factoryCalls,
+        long factoryNanos,
+        long maxFactoryNanos
+    ) {
+        this.bundleId = bundleId;
+        this.symbolicName = symbolicName;
+        this.classesInspected = classesInspected;
+        this.classesWoven = classesWoven;
+        this.bytesIn = bytesIn;
+        this.bytesOut = bytesOut;
+        this.weaveNanos = weaveNanos;
+        this.maxWeaveNanos = maxWeaveNanos;
+        this.weaveFailures = weaveFailures;
+        this.factoryCalls = factoryCalls;
+        this.factoryNanos = factoryNanos;
+        this.maxFactoryNanos = maxFactoryNanos;
+    }
+
+    public long getBundleId() {
+        return bundleId;
+    }
+
+    public String getSymbolicName() {
+        return symbolicName;
+    }
+
+    /**
+     * @return How many of this bundle's classes the weaving hook has seen.
+     */
+    public long getClassesInspected() {
+        return classesInspected;
+    }
+
+    public long getClassesWoven() {
+        return classesWoven;
+    }
+
+    /**
+     * @return The total size of the classes that the weaving hook has seen.
+     */
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    /**
+     * @return The total size of the classes after they were woven.
+     */
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    public long getWeaveNanos() {
+        return weaveNanos;
+    }
+
+    public long getMaxWeaveNanos() {
+        return maxWeaveNanos;
+    }
+
+    public long getWeaveFailures() {
+        return weaveFailures;
+    }
+
+    /**
+     * @return How many XML factories this bundle's woven code has created.
+     */
+    public long getFactoryCalls() {
+        return factoryCalls;
+    }
+
+    public long getFactoryNanos() {
+        return factoryNanos;
+    }
+
+    public long getMaxFactoryNanos() {
+        return maxFactoryNanos;
+    }
+}
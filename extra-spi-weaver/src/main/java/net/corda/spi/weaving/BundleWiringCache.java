@@ -0,0 +1,232 @@
+package net.corda.spi.weaving;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static java.util.Collections.unmodifiableMap;
+import static org.osgi.framework.Constants.VISIBILITY_DIRECTIVE;
+import static org.osgi.framework.Constants.VISIBILITY_REEXPORT;
+import static org.osgi.framework.wiring.BundleRevision.BUNDLE_NAMESPACE;
+import static org.osgi.framework.wiring.BundleRevision.HOST_NAMESPACE;
+import static org.osgi.framework.wiring.BundleRevision.PACKAGE_NAMESPACE;
+import static org.osgi.framework.wiring.BundleRevision.TYPE_FRAGMENT;
+
+/**
+ * Remembers what {@link OSGiFriendlyClassWriter} has learned about each
+ * {@link BundleWiring}, so that it needn't read the same class files over and
+ * over again. Each class's super class is recorded against the wiring whose
+ * class loader found it, except that {@code java.*} classes are shared by
+ * every wiring because these can only come from the platform.
+ * <p>
+ * We never record anything for a wiring that is no longer current, and forget
+ * everything we know about a wiring once it has been replaced. Each bundle
+ * has at most one current wiring, and so we index them by bundle ID. We
+ * forget a bundle's wiring when the bundle is unresolved, updated or
+ * uninstalled, or when we first see its next wiring.
+ */
+final class BundleWiringCache {
+    private static final String JAVA_PACKAGE_PREFIX = "java/";
+
+    private final ConcurrentMap<String, String> platformSuperClasses = new ConcurrentHashMap<>();
+    private final BundleIdMap<WiringInfo> wirings = new BundleIdMap<>();
+
+    /**
+     * @param wiring The wiring whose class loader can read this class,
+     * or {@code null} for the platform class loader.
+     * @param className The internal name of the class.
+     * @return The internal name of this class's super class, if we know it.
+     */
+    @Nullable
+    String getSuperClass(@Nullable BundleWiring wiring, @Nonnull String className) {
+        final ConcurrentMap<String, String> classes;
+        if (wiring == null || className.startsWith(JAVA_PACKAGE_PREFIX)) {
+            classes = platformSuperClasses;
+        } else {
+            final WiringInfo info = wirings.get(wiring.getBundle().getBundleId());
+            if (info == null || info.wiring != wiring) {
+                return null;
+            }
+            classes = info.superClasses;
+        }
+        return classes.get(className);
+    }
+
+    void putSuperClass(@Nullable BundleWiring wiring, @Nonnull String className, @Nonnull String superClassName) {
+        final ConcurrentMap<String, String> classes;
+        if (wiring == null || className.startsWith(JAVA_PACKAGE_PREFIX)) {
+            classes = platformSuperClasses;
+        } else {
+            final WiringInfo info = getWiringInfo(wiring);
+            if (info == null) {
+                return;
+            }
+            classes = info.superClasses;
+        }
+        classes.putIfAbsent(className, superClassName);
+    }
+
+    /**
+     * @param wiring The wiring of the bundle whose class loader is looking for this package.
+     * @param packageName The dotted name of the package.
+     * @return The wiring that provides this package to {@code wiring}, or the
+     * (host) wiring itself if no other bundle provides this package.
+     */
+    @Nonnull
+    BundleWiring getPackageProvider(@Nonnull BundleWiring wiring, @Nonnull String packageName) {
+        final BundleWiring hostWiring = getHostWiring(wiring);
+        final WiringInfo info = getWiringInfo(hostWiring);
+        final Map<String, BundleWiring> packageProviders;
+        if (info == null) {
+            packageProviders = createPackageIndex(hostWiring);
+        } else {
+            Map<String, BundleWiring> index = info.packageProviders;
+            if (index == null) {
+                index = createPackageIndex(hostWiring);
+                info.packageProviders = index;
+            }
+            packageProviders = index;
+        }
+        return packageProviders.getOrDefault(packageName, hostWiring);
+    }
+
+    /**
+     * @return This wiring's {@link WiringInfo}, or {@code null} if
+     * this wiring has been replaced and will soon be discarded.
+     */
+    @Nullable
+    private WiringInfo getWiringInfo(@Nonnull BundleWiring wiring) {
+        final long bundleId = wiring.getBundle().getBundleId();
+        final WiringInfo info = wirings.get(bundleId);
+        if (info != null && info.wiring == wiring) {
+            return info;
+        } else if (!wiring.isCurrent()) {
+            return null;
+        }
+
+        synchronized (wirings) {
+            final WiringInfo existing = wirings.get(bundleId);
+            if (existing != null) {
+                if (existing.wiring == wiring) {
+                    return existing;
+                }
+                // This wiring has replaced the one we knew.
+                wirings.remove(bundleId);
+            }
+            final WiringInfo created = new WiringInfo(wiring);
+            wirings.putIfAbsent(bundleId, created);
+            return created;
+        }
+    }
+
+    /**
+     * A fragment shares its host's class loader, and so we want the host's wiring.
+     */
+    @Nonnull
+    private static BundleWiring getHostWiring(@Nonnull BundleWiring wiring) {
+        if ((wiring.getRevision().getTypes() & TYPE_FRAGMENT) != 0) {
+            final List<BundleWire> hostWires = wiring.getRequiredWires(HOST_NAMESPACE);
+            if (hostWires != null && !hostWires.isEmpty()) {
+                return hostWires.get(0).getProviderWiring();
+            }
+        }
+        return wiring;
+    }
+
+    /**
+     * Maps each package that this wiring's class loader finds elsewhere to
+     * the wiring which provides it. An imported package hides any package
+     * from a required bundle, which in turn hides the bundle's own package.
+     * The host wiring's wires already include those of its fragments.
+     */
+    @Nonnull
+    private static Map<String, BundleWiring> createPackageIndex(@Nonnull BundleWiring wiring) {
+        final Map<String, BundleWiring> index = new HashMap<>();
+        final Set<BundleWiring> visited = new HashSet<>();
+        addRequiredBundles(index, wiring.getRequiredWires(BUNDLE_NAMESPACE), visited, false);
+        final List<BundleWire> packageWires = wiring.getRequiredWires(PACKAGE_NAMESPACE);
+        if (packageWires != null) {
+            for (BundleWire packageWire : packageWires) {
+                final Object packageName = getPackageName(packageWire.getCapability());
+                if (packageName != null) {
+                    index.put(packageName.toString(), packageWire.getProviderWiring());
+                }
+            }
+        }
+        return unmodifiableMap(index);
+    }
+
+    /**
+     * Adds the packages exported by each {@code Require-Bundle} bundle,
+     * and also those of every bundle that a required bundle re-exports.
+     */
+    private static void addRequiredBundles(
+        @Nonnull Map<String, BundleWiring> index,
+        @Nullable List<BundleWire> bundleWires,
+        @Nonnull Set<BundleWiring> visited,
+        boolean reexportOnly
+    ) {
+        if (bundleWires == null) {
+            return;
+        }
+        for (BundleWire bundleWire : bundleWires) {
+            if (reexportOnly && !VISIBILITY_REEXPORT.equals(bundleWire.getRequirement().getDirectives().get(VISIBILITY_DIRECTIVE))) {
+                continue;
+            }
+            final BundleWiring provider = bundleWire.getProviderWiring();
+            if (provider == null || !visited.add(provider)) {
+                continue;
+            }
+            final List<BundleCapability> exports = provider.getCapabilities(PACKAGE_NAMESPACE);
+            if (exports != null) {
+                for (BundleCapability capability : exports) {
+                    final Object packageName = getPackageName(capability);
+                    if (packageName != null) {
+                        index.putIfAbsent(packageName.toString(), provider);
+                    }
+                }
+            }
+            addRequiredBundles(index, provider.getRequiredWires(BUNDLE_NAMESPACE), visited, true);
+        }
+    }
+
+    @Nullable
+    private static Object getPackageName(@Nullable BundleCapability capability) {
+        return capability == null ? null : capability.getAttributes().get(PACKAGE_NAMESPACE);
+    }
+
+    /**
+     * Forgets this bundle's wiring, once it is unresolved, updated or uninstalled.
+     */
+    void evict(@Nonnull Bundle bundle) {
+        wirings.remove(bundle.getBundleId());
+    }
+
+    void clear() {
+        platformSuperClasses.clear();
+        wirings.clear();
+    }
+
+    private static final class WiringInfo {
+        private final BundleWiring wiring;
+        private final ConcurrentMap<String, String> superClasses = new ConcurrentHashMap<>();
+
+        // Built lazily, because most wirings never need it.
+        private volatile Map<String, BundleWiring> packageProviders;
+
+        WiringInfo(@Nonnull BundleWiring wiring) {
+            this.wiring = wiring;
+        }
+    }
+}
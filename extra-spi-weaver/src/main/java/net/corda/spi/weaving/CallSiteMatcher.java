@@ -0,0 +1,129 @@
+package net.corda.spi.weaving;
+
+import org.apache.aries.spifly.WeavingData;
+import org.objectweb.asm.Type;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the {@link WeavingData} rule for a static method invocation, given the
+ * owner, name and descriptor exactly as ASM reports them. We compile the rules
+ * into a map keyed by each rule's internal class name, and so an invocation of
+ * any other class costs one hash lookup and allocates nothing. As before, we
+ * only compare the descriptor's argument types and not its return type.
+ */
+final class CallSiteMatcher {
+    private static final Map<String, Type> PRIMITIVE_TYPES = Map.of(
+        "boolean", Type.BOOLEAN_TYPE,
+        "char", Type.CHAR_TYPE,
+        "byte", Type.BYTE_TYPE,
+        "short", Type.SHORT_TYPE,
+        "int", Type.INT_TYPE,
+        "float", Type.FLOAT_TYPE,
+        "long", Type.LONG_TYPE,
+        "double", Type.DOUBLE_TYPE
+    );
+
+    // Every consumer bundle normally shares the same rules.
+    private static volatile CallSiteMatcher latest;
+
+    private final Set<WeavingData> weavingData;
+    private final Map<String, Map<String, Rule[]>> owners = new HashMap<>();
+
+    private CallSiteMatcher(@Nonnull Set<WeavingData> weavingData) {
+        this.weavingData = weavingData;
+
+        final Map<String, Map<String, List<Rule>>> rules = new HashMap<>();
+        for (WeavingData data : weavingData) {
+            rules.computeIfAbsent(data.getClassName().replace('.', '/'), k -> new HashMap<>())
+                .computeIfAbsent(data.getMethodName(), k -> new ArrayList<>())
+                .add(new Rule(data));
+        }
+        rules.forEach((owner, methods) -> {
+            final Map<String, Rule[]> compiled = new HashMap<>();
+            methods.forEach((name, list) -> compiled.put(name, list.toArray(new Rule[0])));
+            owners.put(owner, compiled);
+        });
+    }
+
+    @Nonnull
+    static CallSiteMatcher forRules(@Nonnull Set<WeavingData> weavingData) {
+        CallSiteMatcher matcher = latest;
+        if (matcher == null || matcher.weavingData != weavingData) {
+            matcher = new CallSiteMatcher(weavingData);
+            latest = matcher;
+        }
+        return matcher;
+    }
+
+    /**
+     * @param owner The invoked method's internal class name.
+     * @return The first rule for this method, or {@code null} if there is none.
+     */
+    @Nullable
+    WeavingData match(@Nonnull String owner, @Nonnull String name, @Nonnull String desc) {
+        final Map<String, Rule[]> methods = owners.get(owner);
+        if (methods == null) {
+            return null;
+        }
+        final Rule[] rules = methods.get(name);
+        if (rules != null) {
+            for (Rule rule : rules) {
+                if (rule.matches(desc)) {
+                    return rule.data;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static final class Rule {
+        private final WeavingData data;
+        // The descriptor's arguments, e.g. "(Ljava/lang/String;)", or null to accept any.
+        private final String argumentsDescriptor;
+
+        Rule(@Nonnull WeavingData data) {
+            this.data = data;
+            final String[] argClasses = data.getArgClasses();
+            if (argClasses == null) {
+                argumentsDescriptor = null;
+            } else {
+                final StringBuilder descriptor = new StringBuilder("(");
+                for (String argClass : argClasses) {
+                    descriptor.append(toDescriptor(argClass));
+                }
+                argumentsDescriptor = descriptor.append(')').toString();
+            }
+        }
+
+        boolean matches(@Nonnull String desc) {
+            return argumentsDescriptor == null || desc.startsWith(argumentsDescriptor);
+        }
+
+        /**
+         * Reverses {@link Type#getClassName()}, e.g. for {@code int} or {@code java.lang.String[]}.
+         */
+        @Nonnull
+        private static String toDescriptor(@Nonnull String className) {
+            String elementName = className;
+            final StringBuilder descriptor = new StringBuilder();
+            while (elementName.endsWith("[]")) {
+                descriptor.append('[');
+                elementName = elementName.substring(0, elementName.length() - 2);
+            }
+            final Type primitive = PRIMITIVE_TYPES.get(elementName);
+            if (primitive != null) {
+                descriptor.append(primitive.getDescriptor());
+            } else {
+                descriptor.append('L').append(elementName.replace('.', '/')).append(';');
+            }
+            return descriptor.toString();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package net.corda.spi.weaving;
+
+/**
+ * A snapshot of the XML factories created by a single woven call.
+ * All durations are in nanoseconds.
+ */
+public final class CallSiteStatistics {
+    private final long bundleId;
+    private final String callSite;
+    private final long calls;
+    private final long totalNanos;
+    private final long maxNanos;
+    private final long[] latencyHistogram;
+
+    CallSiteStatistics(long bundleId, String callSite, long calls, long totalNanos, long maxNanos, long[] latencyHistogram) {
+        this.bundleId = bundleId;
+        this.callSite = callSite;
+        this.calls = calls;
+        this.totalNanos = totalNanos;
+        this.maxNanos = maxNanos;
+        this.latencyHistogram = latencyHistogram;
+    }
+
+    public long getBundleId() {
+        return bundleId;
+    }
+
+    /**
+     * @return The calling class and method, followed by either the
+     * line number or else the position of the call within the method,
+     * e.g. {@code com.example.Parser.parse:42} or {@code com.example.Parser.parse#1}.
+     */
+    public String getCallSite() {
+        return callSite;
+    }
+
+    public long getCalls() {
+        return calls;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    /**
+     * @return Element {@code i} counts the calls which took fewer than 2<sup>i</sup>
+     * microseconds, but not fewer than 2<sup>i-1</sup>. The last element also
+     * counts every slower call.
+     */
+    public long[] getLatencyHistogram() {
+        return latencyHistogram.clone();
+    }
+}
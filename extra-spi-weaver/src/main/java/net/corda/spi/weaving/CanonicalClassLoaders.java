@@ -0,0 +1,172 @@
+package net.corda.spi.weaving;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * Hands out the same delegating class loader for the same delegates, so that
+ * every consumer of the same provider bundles also shares that loader's caches.
+ * We only hold weak references to the delegates and to the loaders themselves,
+ * and so we never prevent an uninstalled bundle from being garbage collected.
+ * Whoever uses a loader must therefore hold it for as long as it needs it.
+ */
+final class CanonicalClassLoaders<L extends ClassLoader> {
+    private final Function<ClassLoader[], L> factory;
+    private final ConcurrentMap<Key, LoaderReference<L>> loaders = new ConcurrentHashMap<>();
+    private final ReferenceQueue<L> queue = new ReferenceQueue<>();
+
+    /**
+     * @param factory Creates a new loader for these delegates, in this order.
+     */
+    CanonicalClassLoaders(@Nonnull Function<ClassLoader[], L> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * @param delegates The delegates, any of which may be {@code null}.
+     * Different orders of the same delegates have different loaders.
+     */
+    @Nonnull
+    L get(@Nonnull ClassLoader... delegates) {
+        expungeStaleLoaders();
+
+        final LoaderReference<L> existing = loaders.get(new StrongKey(delegates));
+        final L loader = (existing == null) ? null : existing.get();
+        if (loader != null) {
+            return loader;
+        }
+
+        final L created = factory.apply(delegates);
+        final Key key = new WeakKey(delegates);
+        final LoaderReference<L> reference = new LoaderReference<>(created, key, queue);
+        final L winner = loaders.compute(key, (k, current) ->
+            (current != null && current.get() != null) ? current : reference
+        ).get();
+        return (winner != null) ? winner : created;
+    }
+
+    private void expungeStaleLoaders() {
+        Reference<? extends L> stale;
+        while ((stale = queue.poll()) != null) {
+            final LoaderReference<?> reference = (LoaderReference<?>) stale;
+            loaders.remove(reference.key, reference);
+        }
+    }
+
+    private static final class LoaderReference<L> extends WeakReference<L> {
+        private final Key key;
+
+        LoaderReference(@Nonnull L loader, @Nonnull Key key, @Nonnull ReferenceQueue<? super L> queue) {
+            super(loader, queue);
+            this.key = key;
+        }
+    }
+
+    /**
+     * Compares delegates by identity. A {@link WeakKey} whose delegates
+     * have been garbage collected is only equal to itself.
+     */
+    private abstract static class Key {
+        static final Object COLLECTED = new Object();
+
+        private final int hash;
+
+        Key(@Nonnull ClassLoader[] delegates) {
+            int h = 1;
+            for (ClassLoader delegate : delegates) {
+                h = 31 * h + System.identityHashCode(delegate);
+            }
+            hash = h;
+        }
+
+        abstract int size();
+
+        /**
+         * @return The delegate, which may be {@code null}, or {@link #COLLECTED}.
+         */
+        @Nullable
+        abstract Object getDelegate(int index);
+
+        @Override
+        public final int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public final boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            } else if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            if (hash != other.hash || size() != other.size()) {
+                return false;
+            }
+            for (int i = 0; i < size(); ++i) {
+                final Object delegate = getDelegate(i);
+                if (delegate == COLLECTED || delegate != other.getDelegate(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Only used to look a loader up.
+     */
+    private static final class StrongKey extends Key {
+        private final ClassLoader[] delegates;
+
+        StrongKey(@Nonnull ClassLoader[] delegates) {
+            super(delegates);
+            this.delegates = delegates;
+        }
+
+        @Override
+        int size() {
+            return delegates.length;
+        }
+
+        @Override
+        @Nullable
+        Object getDelegate(int index) {
+            return delegates[index];
+        }
+    }
+
+    private static final class WeakKey extends Key {
+        private final WeakReference<?>[] delegates;
+
+        WeakKey(@Nonnull ClassLoader[] delegates) {
+            super(delegates);
+            this.delegates = new WeakReference<?>[delegates.length];
+            for (int i = 0; i < delegates.length; ++i) {
+                this.delegates[i] = (delegates[i] == null) ? null : new WeakReference<>(delegates[i]);
+            }
+        }
+
+        @Override
+        int size() {
+            return delegates.length;
+        }
+
+        @Override
+        @Nullable
+        Object getDelegate(int index) {
+            final WeakReference<?> reference = delegates[index];
+            if (reference == null) {
+                return null;
+            }
+            final Object delegate = reference.get();
+            return (delegate == null) ? COLLECTED : delegate;
+        }
+    }
+}
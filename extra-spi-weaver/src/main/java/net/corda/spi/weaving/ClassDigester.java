@@ -0,0 +1,119 @@
+package net.corda.spi.weaving;
+
+import org.apache.aries.spifly.WeavingData;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Derives the key under which every weaving cache records its verdict for
+ * a class: the SHA-256 digest of the class's original bytes, the
+ * {@link WeavingData} rules applied to it, and the weaver itself.
+ */
+final class ClassDigester {
+    static final int KEY_SIZE = 32;
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final String[] WEAVER_CLASSES = {
+        "net/corda/spi/weaving/TCCLSetterVisitor.class",
+        "net/corda/spi/weaving/TCCLSetterVisitor$TCCLSetterMethodVisitor.class",
+        "org/objectweb/asm/ClassReader.class",
+        "org/objectweb/asm/ClassWriter.class",
+        "org/objectweb/asm/MethodWriter.class"
+    };
+
+    private final byte[] weaverFingerprint;
+    private final ConcurrentMap<Set<WeavingData>, MessageDigest> ruleDigests = new ConcurrentHashMap<>();
+
+    private ClassDigester(byte[] weaverFingerprint) {
+        this.weaverFingerprint = weaverFingerprint;
+    }
+
+    /**
+     * @param preserveFrames Whether woven classes keep their stack map frames
+     * and debug information, which changes the woven bytes.
+     * @param profileCallSites Whether woven classes identify their call sites,
+     * which changes the woven bytes.
+     * @param invokeDynamic Whether woven classes link their calls dynamically,
+     * which also changes the woven bytes.
+     */
+    @Nonnull
+    static ClassDigester create(boolean preserveFrames, boolean profileCallSites, boolean invokeDynamic) throws IOException {
+        return new ClassDigester(getWeaverFingerprint(preserveFrames, profileCallSites, invokeDynamic));
+    }
+
+    /**
+     * A different weaver may well produce different bytes from the same rules,
+     * and so we also identify the weaver by the classes which generate its output
+     * and by the options which affect it.
+     */
+    @Nonnull
+    private static byte[] getWeaverFingerprint(boolean preserveFrames, boolean profileCallSites, boolean invokeDynamic) throws IOException {
+        final MessageDigest digest = createDigest();
+        digest.update((byte) ((profileCallSites ? 1 : 0) | (invokeDynamic ? 2 : 0) | (preserveFrames ? 4 : 0)));
+        final ClassLoader weaverLoader = TCCLSetterVisitor.class.getClassLoader();
+        for (String resourceName : WEAVER_CLASSES) {
+            try (InputStream input = weaverLoader.getResourceAsStream(resourceName)) {
+                if (input == null) {
+                    throw new IOException("Cannot read " + resourceName);
+                }
+                digest.update(input.readAllBytes());
+            }
+        }
+        return digest.digest();
+    }
+
+    @Nonnull
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return A key for this class and these rules. Different rules
+     * will always produce a different key for the same class.
+     */
+    @Nonnull
+    ByteBuffer keyFor(@Nonnull Set<WeavingData> weavingData, @Nonnull byte[] classBytes) {
+        final MessageDigest prototype = ruleDigests.computeIfAbsent(weavingData, this::createRuleDigest);
+        final MessageDigest digest;
+        try {
+            digest = (MessageDigest) prototype.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+        return ByteBuffer.wrap(digest.digest(classBytes));
+    }
+
+    @Nonnull
+    private MessageDigest createRuleDigest(@Nonnull Set<WeavingData> weavingData) {
+        final MessageDigest digest = createDigest();
+
+        // Every JVM must derive the same fingerprint, regardless of iteration order.
+        final Collection<String> rules = new TreeSet<>();
+        for (WeavingData data : weavingData) {
+            rules.add(data.toString());
+        }
+        digest.update(weaverFingerprint);
+        for (String rule : rules) {
+            digest.update((byte) 0);
+            digest.update(rule.getBytes(UTF_8));
+        }
+        digest.update((byte) 0);
+        return digest;
+    }
+}
@@ -0,0 +1,170 @@
+package net.corda.spi.weaving;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static net.corda.spi.weaving.FactoryCallScanner.CONSTANT_CLASS;
+import static net.corda.spi.weaving.FactoryCallScanner.CONSTANT_DOUBLE;
+import static net.corda.spi.weaving.FactoryCallScanner.CONSTANT_DYNAMIC;
+import static net.corda.spi.weaving.FactoryCallScanner.CONSTANT_FIELDREF;
+import static net.corda.spi.weaving.FactoryCallScanner.CONSTANT_FLOAT;
+import static net.corda.spi.weaving.FactoryCallScanner.CONSTANT_INTEGER;
+import static net.corda.spi.weaving.FactoryCallScanner.CONSTANT_INTERFACE_METHODREF;
+import static net.corda.spi.weaving.FactoryCallScanner.CONSTANT_INVOKE_DYNAMIC;
+import static net.corda.spi.weaving.FactoryCallScanner.CONSTANT_LONG;
+import static net.corda.spi.weaving.FactoryCallScanner.CONSTANT_METHODREF;
+import static net.corda.spi.weaving.FactoryCallScanner.CONSTANT_METHOD_HANDLE;
+import static net.corda.spi.weaving.FactoryCallScanner.CONSTANT_METHOD_TYPE;
+import static net.corda.spi.weaving.FactoryCallScanner.CONSTANT_MODULE;
+import static net.corda.spi.weaving.FactoryCallScanner.CONSTANT_NAME_AND_TYPE;
+import static net.corda.spi.weaving.FactoryCallScanner.CONSTANT_PACKAGE;
+import static net.corda.spi.weaving.FactoryCallScanner.CONSTANT_POOL_OFFSET;
+import static net.corda.spi.weaving.FactoryCallScanner.CONSTANT_STRING;
+import static net.corda.spi.weaving.FactoryCallScanner.CONSTANT_UTF8;
+import static net.corda.spi.weaving.FactoryCallScanner.MAGIC;
+
+/**
+ * Reads a class file only as far as its {@code super_class} item, which
+ * immediately follows the constant pool. Everything after that, i.e. the
+ * interfaces, fields, methods and attributes, is never read at all.
+ */
+final class ClassHeaderReader {
+    private static final int MIN_READ_SIZE = 512;
+
+    private final InputStream input;
+    private byte[] buffer = new byte[MIN_READ_SIZE * 2];
+    private int limit;
+
+    private ClassHeaderReader(InputStream input) {
+        this.input = input;
+    }
+
+    /**
+     * @param input The contents of a class file. This stream is left
+     * positioned somewhere after the {@code super_class} item.
+     * @return The internal name of the class's super class, which is
+     * {@code null} only for {@code java.lang.Object}.
+     */
+    @Nullable
+    static String readSuperClass(@Nonnull InputStream input) throws IOException {
+        return new ClassHeaderReader(input).readSuperClass();
+    }
+
+    @Nullable
+    private String readSuperClass() throws IOException {
+        require(CONSTANT_POOL_OFFSET);
+        if (readInt(0) != MAGIC) {
+            throw new IOException("Not a class file");
+        }
+
+        final int constantPoolCount = readUnsignedShort(CONSTANT_POOL_OFFSET - 2);
+        final int[] offsets = new int[constantPoolCount];
+        int offset = CONSTANT_POOL_OFFSET;
+        for (int i = 1; i < constantPoolCount; ++i) {
+            offsets[i] = offset;
+            // Every constant has at least a tag and a two byte value.
+            require(offset + 3);
+            final int tag = buffer[offset];
+            switch (tag) {
+            case CONSTANT_UTF8:
+                offset += 3 + readUnsignedShort(offset + 1);
+                break;
+            case CONSTANT_INTEGER:
+            case CONSTANT_FLOAT:
+            case CONSTANT_FIELDREF:
+            case CONSTANT_METHODREF:
+            case CONSTANT_INTERFACE_METHODREF:
+            case CONSTANT_NAME_AND_TYPE:
+            case CONSTANT_DYNAMIC:
+            case CONSTANT_INVOKE_DYNAMIC:
+                offset += 5;
+                break;
+            case CONSTANT_LONG:
+            case CONSTANT_DOUBLE:
+                // These constants occupy two slots.
+                offset += 9;
+                ++i;
+                break;
+            case CONSTANT_CLASS:
+            case CONSTANT_STRING:
+            case CONSTANT_METHOD_TYPE:
+            case CONSTANT_MODULE:
+            case CONSTANT_PACKAGE:
+                offset += 3;
+                break;
+            case CONSTANT_METHOD_HANDLE:
+                offset += 4;
+                break;
+            default:
+                throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+
+        // Skip access_flags and this_class.
+        require(offset + 6);
+        final int superClassIndex = readUnsignedShort(offset + 4);
+        if (superClassIndex == 0) {
+            return null;
+        }
+
+        try {
+            final int classEntry = offsets[superClassIndex];
+            final int utf8Entry = offsets[readUnsignedShort(classEntry + 1)];
+            if (buffer[classEntry] != CONSTANT_CLASS || buffer[utf8Entry] != CONSTANT_UTF8) {
+                throw new IOException("Invalid super_class item");
+            }
+            return readUtf(utf8Entry + 1);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Invalid super_class item", e);
+        }
+    }
+
+    /**
+     * Makes sure that we have read at least {@code size} bytes.
+     */
+    private void require(int size) throws IOException {
+        if (size <= limit) {
+            return;
+        }
+        if (size > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(size, buffer.length * 2));
+        }
+        while (limit < size) {
+            // Don't read far beyond what we need, but nor a few bytes at a time.
+            final int wanted = Math.min(buffer.length, Math.max(size, limit + MIN_READ_SIZE)) - limit;
+            final int count = input.read(buffer, limit, wanted);
+            if (count < 0) {
+                throw new EOFException("Truncated class file");
+            }
+            limit += count;
+        }
+    }
+
+    /**
+     * Decodes the modified UTF-8 string whose two byte length is at {@code offset}.
+     */
+    @Nonnull
+    private String readUtf(int offset) throws IOException {
+        final int length = readUnsignedShort(offset);
+        try (DataInputStream utf = new DataInputStream(new ByteArrayInputStream(buffer, offset, length + 2))) {
+            return utf.readUTF();
+        }
+    }
+
+    private int readUnsignedShort(int offset) {
+        return ((buffer[offset] & 0xFF) << 8) | (buffer[offset + 1] & 0xFF);
+    }
+
+    private int readInt(int offset) {
+        return ((buffer[offset] & 0xFF) << 24)
+            | ((buffer[offset + 1] & 0xFF) << 16)
+            | ((buffer[offset + 2] & 0xFF) << 8)
+            | (buffer[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,42 @@
+package net.corda.spi.weaving;
+
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+
+import javax.annotation.Nonnull;
+
+import static org.osgi.framework.BundleEvent.RESOLVED;
+import static org.osgi.framework.BundleEvent.UNINSTALLED;
+import static org.osgi.framework.BundleEvent.UNRESOLVED;
+import static org.osgi.framework.BundleEvent.UPDATED;
+
+/**
+ * Makes {@link DynamicExtraWeavingActivator} forget what it decided about
+ * a bundle whenever that decision might change. We do not evaluate bundles
+ * here, because the weaving hook evaluates each bundle the first time that
+ * it loads a class. The exception is when we are weaving in the background,
+ * which should begin as soon as a consumer bundle is resolved.
+ */
+final class ConsumerBundleListener implements SynchronousBundleListener {
+    private final DynamicExtraWeavingActivator activator;
+
+    ConsumerBundleListener(@Nonnull DynamicExtraWeavingActivator activator) {
+        this.activator = activator;
+    }
+
+    @Override
+    public void bundleChanged(@Nonnull BundleEvent event) {
+        switch (event.getType()) {
+        case UPDATED:
+        case UNRESOLVED:
+        case UNINSTALLED:
+            activator.removeBundle(event.getBundle());
+            break;
+        case RESOLVED:
+            activator.bundleResolved(event.getBundle());
+            break;
+        default:
+            break;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package net.corda.spi.weaving;
+
+import aQute.bnd.header.Attrs;
+import aQute.bnd.header.Parameters;
+import aQute.libg.glob.Glob;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Matches bundle symbolic names against the globs configured by
+ * {@code net.corda.spi-weaver.auto.consumers}, which we compile once. A glob
+ * matches a symbolic name if it matches any part of it, as {@link Glob} always
+ * has, and the first matching glob wins.
+ * <p>
+ * Most globs are plain names, possibly with a leading or trailing {@code *},
+ * and so only match names which contain that literal text. We find all of
+ * these in one pass over the name, using an Aho-Corasick automaton. Only the
+ * remaining globs need a regular expression, and we combine these into one.
+ */
+final class ConsumerMatcher {
+    private static final ConsumerMatcher NONE = new ConsumerMatcher(new Parameters());
+    private static final String GLOB_CHARS = "*?[]{}()|\\";
+    private static final String GROUP = "g";
+    private static final Logger logger = DynamicExtraWeavingActivator.logger;
+
+    private final List<Attrs> attrs = new ArrayList<>();
+    private final Node literals = new Node();
+    private final Pattern combined;
+    private final int[] combinedIndices;
+
+    private ConsumerMatcher(@Nonnull Parameters instructions) {
+        final StringBuilder regex = new StringBuilder();
+        final List<Integer> regexIndices = new ArrayList<>();
+        for (Map.Entry<String, Attrs> instruction : instructions.entrySet()) {
+            final int index = attrs.size();
+            final String glob = instruction.getKey();
+            attrs.add(instruction.getValue());
+
+            final String literal = stripStars(glob);
+            if (isLiteral(literal)) {
+                literals.insert(literal, index);
+                continue;
+            }
+
+            final Pattern pattern;
+            try {
+                pattern = Glob.toPattern(glob);
+            } catch (PatternSyntaxException e) {
+                logger.log(WARNING, "Ignoring invalid auto consumer {0}", glob);
+                continue;
+            }
+            // Each lookahead finds its glob anywhere in the name, independently of the others.
+            regex.append("(?:(?=[\\s\\S]*?(?<").append(GROUP).append(index).append('>')
+                .append(pattern.pattern()).append(")))?");
+            regexIndices.add(index);
+        }
+        literals.link();
+        combined = regexIndices.isEmpty() ? null : Pattern.compile(regex.toString());
+        combinedIndices = regexIndices.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    @Nonnull
+    static ConsumerMatcher compile(@Nullable Parameters instructions) {
+        return (instructions == null || instructions.isEmpty()) ? NONE : new ConsumerMatcher(instructions);
+    }
+
+    /**
+     * A leading or trailing {@code *} can match nothing, and so does not
+     * change which names a glob matches somewhere inside.
+     */
+    @Nonnull
+    private static String stripStars(@Nonnull String glob) {
+        int start = 0;
+        int end = glob.length();
+        while (start < end && glob.charAt(start) == '*') {
+            ++start;
+        }
+        while (end > start && glob.charAt(end - 1) == '*') {
+            --end;
+        }
+        return glob.substring(start, end);
+    }
+
+    private static boolean isLiteral(@Nonnull String text) {
+        for (int i = 0; i < text.length(); ++i) {
+            if (GLOB_CHARS.indexOf(text.charAt(i)) != -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The attributes of the first glob which matches this
+     * symbolic name, or {@code null} if none of them do.
+     */
+    @Nullable
+    Attrs match(@Nullable String symbolicName) {
+        if (symbolicName == null || attrs.isEmpty()) {
+            return null;
+        }
+
+        int first = literals.match(symbolicName);
+        if (combined != null && combinedIndices[0] < first) {
+            final Matcher matcher = combined.matcher(symbolicName);
+            // Every lookahead is optional, and so this always matches.
+            matcher.lookingAt();
+            for (int index : combinedIndices) {
+                if (index >= first) {
+                    break;
+                } else if (matcher.start(GROUP + index) != -1) {
+                    first = index;
+                    break;
+                }
+            }
+        }
+        return (first == Integer.MAX_VALUE) ? null : attrs.get(first);
+    }
+
+    /**
+     * A node of the Aho-Corasick automaton, whose children are sorted by character.
+     * Its index is the lowest index of any glob whose literal ends here, including
+     * those which we reach by following failure links.
+     */
+    private static final class Node {
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private Node failure;
+        private int index = Integer.MAX_VALUE;
+
+        void insert(@Nonnull String literal, int globIndex) {
+            Node node = this;
+            for (int i = 0; i < literal.length(); ++i) {
+                node = node.getOrAddChild(literal.charAt(i));
+            }
+            node.index = Math.min(node.index, globIndex);
+        }
+
+        @Nonnull
+        private Node getOrAddChild(char key) {
+            int position = Arrays.binarySearch(keys, key);
+            if (position < 0) {
+                position = -position - 1;
+                final int size = keys.length;
+                final char[] newKeys = Arrays.copyOf(keys, size + 1);
+                final Node[] newChildren = Arrays.copyOf(children, size + 1);
+                System.arraycopy(keys, position, newKeys, position + 1, size - position);
+                System.arraycopy(children, position, newChildren, position + 1, size - position);
+                newKeys[position] = key;
+                newChildren[position] = new Node();
+                keys = newKeys;
+                children = newChildren;
+            }
+            return children[position];
+        }
+
+        @Nullable
+        private Node getChild(char key) {
+            final int position = Arrays.binarySearch(keys, key);
+            return (position < 0) ? null : children[position];
+        }
+
+        /**
+         * Adds the failure links to this root node's automaton,
+         * once every literal has been inserted.
+         */
+        void link() {
+            final Queue<Node> queue = new ArrayDeque<>();
+            for (Node child : children) {
+                child.failure = this;
+                child.index = Math.min(child.index, index);
+                queue.add(child);
+            }
+            while (!queue.isEmpty()) {
+                final Node node = queue.remove();
+                for (int i = 0; i < node.keys.length; ++i) {
+                    final Node child = node.children[i];
+                    Node failure = node.failure;
+                    Node next;
+                    while ((next = failure.getChild(node.keys[i])) == null && failure != this) {
+                        failure = failure.failure;
+                    }
+                    child.failure = (next != null) ? next : this;
+                    // Breadth first, and so the failure node's index is already complete.
+                    child.index = Math.min(child.index, child.failure.index);
+                    queue.add(child);
+                }
+            }
+        }
+
+        /**
+         * @return The lowest index of any literal contained in this name,
+         * or {@link Integer#MAX_VALUE} if there is none.
+         */
+        int match(@Nonnull String name) {
+            int first = index;
+            Node node = this;
+            for (int i = 0; i < name.length(); ++i) {
+                final char key = name.charAt(i);
+                Node next;
+                while ((next = node.getChild(key)) == null && node != this) {
+                    node = node.failure;
+                }
+                node = (next != null) ? next : this;
+                first = Math.min(first, node.index);
+            }
+            return first;
+        }
+    }
+}
@@ -1,44 +1,37 @@
 package net.corda.spi.weaving;
 
+import aQute.bnd.header.Attrs;
 import aQute.bnd.header.Parameters;
-import aQute.bnd.stream.MapStream;
-import aQute.libg.glob.Glob;
-import org.apache.aries.spifly.BundleDescriptor;
-import org.apache.aries.spifly.ConsumerRestriction;
+import net.corda.spi.weaving.FactoryProviderCache.Sharing;
 import org.apache.aries.spifly.WeavingData;
 import org.osgi.annotation.bundle.Header;
 import org.osgi.annotation.bundle.Requirement;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
-import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceRegistration;
 import org.osgi.framework.hooks.weaving.WeavingHook;
-import org.osgi.util.tracker.BundleTracker;
+import org.osgi.framework.wiring.BundleWiring;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Locale;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 
 import static java.util.Collections.emptySet;
-import static java.util.Collections.singletonList;
 import static java.util.Collections.unmodifiableSet;
-import static org.osgi.framework.Bundle.ACTIVE;
-import static org.osgi.framework.Bundle.INSTALLED;
-import static org.osgi.framework.Bundle.RESOLVED;
-import static org.osgi.framework.Bundle.STARTING;
+import static java.util.logging.Level.WARNING;
+import static org.osgi.framework.Bundle.UNINSTALLED;
 import static org.osgi.framework.Constants.EXTENSION_BUNDLE_ACTIVATOR;
 import static org.osgi.framework.Constants.EXTENSION_DIRECTIVE;
 import static org.osgi.framework.Constants.EXTENSION_FRAMEWORK;
 import static org.osgi.framework.Constants.FILTER_DIRECTIVE;
 import static org.osgi.framework.Constants.FRAGMENT_HOST;
+import static org.osgi.framework.Constants.FRAMEWORK_UUID;
 import static org.osgi.framework.Constants.REQUIRE_CAPABILITY;
 import static org.osgi.framework.Constants.SYSTEM_BUNDLE_SYMBOLICNAME;
 
@@ -51,90 +44,211 @@ public final class DynamicExtraWeavingActivator implements BundleActivator {
 
     private static final String CLIENT_REQUIREMENT = "osgi.extender;"
         + FILTER_DIRECTIVE + ":='(osgi.extender=osgi.serviceloader.processor)'";
+    static final String AUTO_CONSUMER_REQUIREMENT = CLIENT_REQUIREMENT + ",osgi.serviceloader;filter:='(osgi.serviceloader=*)'";
+    // An attribute on an auto consumer, i.e. "bsn;factories=shared".
+    private static final String FACTORIES_ATTRIBUTE = "factories";
 
     private static final Set<WeavingData> NON_WOVEN_BUNDLE = emptySet();
 
-    private final ConcurrentMap<Bundle, Map<ConsumerRestriction, List<BundleDescriptor>>> consumerRestrictions = new ConcurrentHashMap<>();
-    private final ConcurrentMap<Bundle, Set<WeavingData>> bundleWeavingData = new ConcurrentHashMap<>();
+    private final BundleIdMap<Set<WeavingData>> bundleWeavingData = new BundleIdMap<>();
+    private final BundleWiringCache wiringCache = new BundleWiringCache();
+    private final WeavingStatistics statistics = new WeavingStatistics();
 
     private ServiceRegistration<WeavingHook> weaver;
-    private BundleTracker<?> consumerBundleTracker;
-    private Parameters autoConsumerInstructions;
+    private ConsumerBundleListener consumerBundleListener;
+    private ConsumerMatcher autoConsumers;
+    // Every auto consumer shares these rules.
+    private Set<WeavingData> autoConsumerWeavingData;
+    private PersistentWeavingCache weavingCache;
+    private MemoryWeavingCache memoryCache;
+    private FactoryProviderCache providerCache;
+    private PreWeaver preWeaver;
 
     @Override
     public void start(@Nonnull BundleContext context) throws Exception {
-        String autoConsumers = context.getProperty("net.corda.spi-weaver.auto.consumers");
-        autoConsumerInstructions = (autoConsumers != null) ? new Parameters(autoConsumers) : null;
-
-        WeavingHook weavingHook = new DynamicExtraWeavingHook(this);
+        String autoConsumerInstructions = context.getProperty("net.corda.spi-weaver.auto.consumers");
+        autoConsumers = ConsumerMatcher.compile((autoConsumerInstructions != null) ? new Parameters(autoConsumerInstructions) : null);
+        autoConsumerWeavingData = unmodifiableSet(ConsumerHeaderProcessor.processRequireCapabilityHeader(AUTO_CONSUMER_REQUIREMENT));
+
+        boolean preserveFrames = Boolean.parseBoolean(context.getProperty("net.corda.spi-weaver.preserve.frames"));
+        boolean profileCallSites = Boolean.parseBoolean(context.getProperty("net.corda.spi-weaver.profile.call.sites"));
+        boolean invokeDynamic = Boolean.parseBoolean(context.getProperty("net.corda.spi-weaver.invokedynamic"));
+        weavingCache = openWeavingCache(context, preserveFrames);
+        memoryCache = createMemoryCache(context);
+        ClassDigester digester = (weavingCache != null || memoryCache != null) ? createDigester(preserveFrames, profileCallSites, invokeDynamic) : null;
+
+        statistics.register(context, context.getProperty(FRAMEWORK_UUID));
+        boolean directInstantiation = Boolean.parseBoolean(context.getProperty("net.corda.spi-weaver.direct.instantiation"));
+        providerCache = new FactoryProviderCache(directInstantiation);
+        providerCache.register(context);
+
+        DynamicExtraWeavingHook weavingHook = new DynamicExtraWeavingHook(
+            this, preserveFrames, profileCallSites, invokeDynamic, digester, memoryCache, weavingCache, wiringCache, statistics
+        );
+        String preWeaveThreads = context.getProperty("net.corda.spi-weaver.preweave.threads");
+        if (preWeaveThreads != null && Integer.parseInt(preWeaveThreads) > 0) {
+            preWeaver = new PreWeaver(weavingHook, Integer.parseInt(preWeaveThreads));
+            weavingHook.setPreWeaver(preWeaver);
+        }
         weaver = context.registerService(WeavingHook.class, weavingHook, null);
 
-        consumerBundleTracker = new BundleTracker<>(context, INSTALLED | RESOLVED | STARTING | ACTIVE, new ConsumerBundleTrackerCustomizer(this));
-        consumerBundleTracker.open();
-
-        for (Bundle bundle : context.getBundles()) {
-            addConsumerWeavingData(bundle);
-        }
+        // The weaving hook evaluates each bundle when it first needs to.
+        consumerBundleListener = new ConsumerBundleListener(this);
+        context.addBundleListener(consumerBundleListener);
     }
 
     @Override
-    public void stop(BundleContext context) {
-        consumerBundleTracker.close();
+    public void stop(BundleContext context) throws IOException {
+        context.removeBundleListener(consumerBundleListener);
         weaver.unregister();
+        wiringCache.clear();
+        statistics.unregister();
+        providerCache.unregister(context);
+        if (preWeaver != null) {
+            preWeaver.shutdown();
+        }
+        if (memoryCache != null) {
+            memoryCache.close();
+        }
+        if (weavingCache != null) {
+            weavingCache.close();
+        }
     }
 
-    void addConsumerWeavingData(Bundle bundle) throws InvalidSyntaxException {
-        if (bundleWeavingData.containsKey(bundle)) {
-            // This bundle was already processed
-            return;
+    @Nullable
+    private static ClassDigester createDigester(boolean preserveFrames, boolean profileCallSites, boolean invokeDynamic) {
+        try {
+            return ClassDigester.create(preserveFrames, profileCallSites, invokeDynamic);
+        } catch (IOException e) {
+            logger.log(WARNING, e, () -> "Cannot identify weaver, so not caching woven classes");
+            return null;
         }
+    }
 
-        Map<String, List<String>> allHeaders = new HashMap<>();
-        MapStream.ofNullable(autoConsumerInstructions).filterKey(key ->
-            Glob.toPattern(key).asPredicate().test(bundle.getSymbolicName())
-        ).findFirst().ifPresent(un ->
-            allHeaders.put(REQUIRE_CAPABILITY, singletonList(CLIENT_REQUIREMENT + ",osgi.serviceloader;filter:='(osgi.serviceloader=*)'"))
-        );
+    @Nullable
+    private static MemoryWeavingCache createMemoryCache(@Nonnull BundleContext context) {
+        final String maxSize = context.getProperty("net.corda.spi-weaver.memory.cache.size");
+        if (maxSize == null) {
+            return null;
+        }
+        final boolean offHeap = Boolean.parseBoolean(context.getProperty("net.corda.spi-weaver.memory.cache.offheap"));
+        return MemoryWeavingCache.open(parseSize(maxSize), offHeap);
+    }
 
-        Set<WeavingData> weavingData = new HashSet<>();
-        for (Map.Entry<String, List<String>> entry : allHeaders.entrySet()) {
-            String headerName = entry.getKey();
-            for (String headerValue : entry.getValue()) {
-                weavingData.addAll(ConsumerHeaderProcessor.processRequireCapabilityHeader(headerValue));
+    /**
+     * Parses a number of bytes, with an optional {@code k}, {@code m} or {@code g} suffix.
+     */
+    private static long parseSize(@Nonnull String value) {
+        final String size = value.trim().toLowerCase(Locale.ROOT);
+        final int shift;
+        switch (size.isEmpty() ? ' ' : size.charAt(size.length() - 1)) {
+        case 'k':
+            shift = 10;
+            break;
+        case 'm':
+            shift = 20;
+            break;
+        case 'g':
+            shift = 30;
+            break;
+        default:
+            return Long.parseLong(size);
+        }
+        return Long.parseLong(size.substring(0, size.length() - 1).trim()) << shift;
+    }
+
+    @Nullable
+    private static PersistentWeavingCache openWeavingCache(@Nonnull BundleContext context, boolean preserveFrames) {
+        final String cacheDir = context.getProperty("net.corda.spi-weaver.cache.dir");
+        final boolean useDataArea = Boolean.parseBoolean(context.getProperty("net.corda.spi-weaver.cache"));
+        if (cacheDir == null && !useDataArea) {
+            return null;
+        } else if (!preserveFrames) {
+            logger.warning("Woven class cache requires net.corda.spi-weaver.preserve.frames=true");
+            return null;
+        } else if (cacheDir != null) {
+            return PersistentWeavingCache.open(Paths.get(cacheDir));
+        }
+
+        final File dataArea = context.getDataFile("spi-weaver");
+        if (dataArea == null) {
+            logger.warning("Framework has no persistent storage for woven class cache");
+            return null;
+        }
+        return PersistentWeavingCache.open(dataArea.toPath());
+    }
+
+    /**
+     * Evaluates this bundle once, unless another thread has already done so.
+     * @return This bundle's weaving data, which is empty if it is not an auto
+     * consumer or was already woven when it was built.
+     */
+    @Nonnull
+    private Set<WeavingData> addConsumerWeavingData(Bundle bundle) {
+        Set<WeavingData> weavingData = NON_WOVEN_BUNDLE;
+        Attrs consumerAttrs = autoConsumers.match(bundle.getSymbolicName());
+        if (consumerAttrs != null) {
+            // Bundles woven ahead of time can share their factories too. Set this before
+            // any thread can weave this bundle. Racing threads all set the same value.
+            providerCache.setSharing(bundle, getSharing(bundle, consumerAttrs));
+            if (bundle.getHeaders("").get(BundleJarWeaver.PRE_WOVEN_HEADER) == null) {
+                weavingData = autoConsumerWeavingData;
             }
         }
 
-        if (weavingData.isEmpty()) {
-            bundleWeavingData.putIfAbsent(bundle, NON_WOVEN_BUNDLE);
-        } else {
-            if (bundleWeavingData.putIfAbsent(bundle, unmodifiableSet(weavingData)) == null) {
-                for (WeavingData data : weavingData) {
-                    registerConsumerBundle(bundle, data.getArgRestrictions(), data.getAllowedBundles());
-                }
+        Set<WeavingData> existing = bundleWeavingData.putIfAbsent(bundle.getBundleId(), weavingData);
+        if (existing != null) {
+            // Another thread evaluated this bundle first.
+            return existing;
+        }
+        if (!weavingData.isEmpty() && preWeaver != null) {
+            BundleWiring wiring = bundle.adapt(BundleWiring.class);
+            if (wiring != null) {
+                // This bundle is resolved, so start weaving its classes.
+                preWeaver.schedule(wiring, weavingData);
             }
         }
+        return weavingData;
     }
 
-    void registerConsumerBundle(Bundle consumerBundle,
-                                @Nonnull Set<ConsumerRestriction> restrictions,
-                                List<BundleDescriptor> allowedBundles) {
-        Map<ConsumerRestriction, List<BundleDescriptor>> map = consumerRestrictions.computeIfAbsent(
-            consumerBundle, k -> new HashMap<>()
-        );
-        for (ConsumerRestriction restriction : restrictions) {
-            map.put(restriction, allowedBundles);
+    @Nonnull
+    private static Sharing getSharing(@Nonnull Bundle bundle, @Nonnull Attrs consumerAttrs) {
+        final String factories = consumerAttrs.get(FACTORIES_ATTRIBUTE);
+        try {
+            return Sharing.parse(factories);
+        } catch (IllegalArgumentException e) {
+            logger.log(WARNING, "Ignoring invalid {0}={1} for {2}", new Object[] { FACTORIES_ATTRIBUTE, factories, bundle });
+            return Sharing.NONE;
+        }
+    }
+
+    void bundleResolved(Bundle bundle) {
+        if (preWeaver != null) {
+            // Start weaving a consumer's classes before it loads them.
+            getWeavingData(bundle);
         }
     }
 
     void removeBundle(Bundle bundle) {
-        bundleWeavingData.remove(bundle);
-        consumerRestrictions.remove(bundle);
+        bundleWeavingData.remove(bundle.getBundleId());
+        wiringCache.evict(bundle);
+        if (preWeaver != null) {
+            // Any wiring that we pre-wove has been, or soon will be, replaced.
+            preWeaver.discard(bundle);
+        }
+        if (bundle.getState() == UNINSTALLED) {
+            statistics.remove(bundle);
+            providerCache.removeSharing(bundle);
+        }
     }
 
     @Nullable
     Set<WeavingData> getWeavingData(Bundle bundle) {
         // Simply return the value as it's already an immutable set.
-        Set<WeavingData> weavingData = bundleWeavingData.get(bundle);
-        return weavingData == null || weavingData.isEmpty() ? null : weavingData;
+        Set<WeavingData> weavingData = bundleWeavingData.get(bundle.getBundleId());
+        if (weavingData == null) {
+            weavingData = addConsumerWeavingData(bundle);
+        }
+        return weavingData.isEmpty() ? null : weavingData;
     }
 }
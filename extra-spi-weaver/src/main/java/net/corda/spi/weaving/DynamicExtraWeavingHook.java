@@ -1,44 +1,174 @@
 package net.corda.spi.weaving;
 
+import net.corda.spi.weaving.PersistentWeavingCache.Verdict;
+import net.corda.spi.weaving.WeavingStatistics.Counters;
 import org.apache.aries.spifly.WeavingData;
 import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassWriter;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.hooks.weaving.WeavingHook;
 import org.osgi.framework.hooks.weaving.WovenClass;
+import org.osgi.framework.wiring.BundleWiring;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Set;
 
+import static net.corda.spi.weaving.PersistentWeavingCache.NOT_WOVEN;
 import static org.objectweb.asm.ClassReader.SKIP_DEBUG;
 import static org.objectweb.asm.ClassReader.SKIP_FRAMES;
 import static org.objectweb.asm.ClassWriter.COMPUTE_FRAMES;
+import static org.objectweb.asm.ClassWriter.COMPUTE_MAXS;
 
 final class DynamicExtraWeavingHook implements WeavingHook {
     private final DynamicExtraWeavingActivator activator;
+    private final boolean preserveFrames;
+    private final boolean profileCallSites;
+    private final boolean invokeDynamic;
+    private final ClassDigester digester;
+    private final MemoryWeavingCache memoryCache;
+    private final PersistentWeavingCache cache;
+    private final BundleWiringCache wiringCache;
+    private final WeavingStatistics statistics;
+    private volatile PreWeaver preWeaver;
 
-    DynamicExtraWeavingHook(DynamicExtraWeavingActivator activator) {
+    /**
+     * @param preserveFrames Keep each class's original stack map frames and
+     * debug information, and only recompute the maximum stack size. Weaving
+     * only inserts a single {@code LDC} before an {@code INVOKESTATIC}, or else
+     * replaces one {@code INVOKESTATIC} with an {@code INVOKEDYNAMIC}, neither
+     * of which can invalidate any existing frame.
+     * @param profileCallSites Identify each woven call to {@link Util}, so that
+     * it can profile every call site separately.
+     * @param invokeDynamic Link each call which does not name a factory to
+     * that factory's providers, rather than invoking {@link Util}.
+     * @param digester Computes the keys for both caches, which we need if using either.
+     * @param memoryCache Remembers what we did to recent classes, for every bundle in this JVM.
+     * We only share classes whose woven bytes do not depend on the class hierarchy
+     * that other bundles provide.
+     * @param cache Remembers what we did to each class across restarts. This is
+     * only safe when preserving frames, because otherwise the woven bytes also
+     * depend on the class hierarchy that other bundles provide.
+     * @param wiringCache Remembers the class hierarchies that we have read.
+     * @param statistics Counts what we have woven for each bundle.
+     */
+    DynamicExtraWeavingHook(DynamicExtraWeavingActivator activator, boolean preserveFrames, boolean profileCallSites,
+                            boolean invokeDynamic, @Nullable ClassDigester digester, @Nullable MemoryWeavingCache memoryCache,
+                            @Nullable PersistentWeavingCache cache, BundleWiringCache wiringCache,
+                            WeavingStatistics statistics) {
         this.activator = activator;
+        this.preserveFrames = preserveFrames;
+        this.profileCallSites = profileCallSites;
+        this.invokeDynamic = invokeDynamic;
+        this.digester = digester;
+        this.memoryCache = memoryCache;
+        this.cache = cache;
+        this.wiringCache = wiringCache;
+        this.statistics = statistics;
+    }
+
+    void setPreWeaver(@Nullable PreWeaver preWeaver) {
+        this.preWeaver = preWeaver;
     }
 
     @Override
     public void weave(@Nonnull WovenClass wovenClass) {
-        Bundle consumerBundle = wovenClass.getBundleWiring().getBundle();
+        final BundleWiring wiring = wovenClass.getBundleWiring();
+        Bundle consumerBundle = wiring.getBundle();
         Set<WeavingData> weavingData = activator.getWeavingData(consumerBundle);
-        if (weavingData!= null) {
-            ClassReader cr = new ClassReader(wovenClass.getBytes());
-            ClassWriter cw = new OSGiFriendlyClassWriter(COMPUTE_FRAMES, wovenClass.getBundleWiring());
-            TCCLSetterVisitor tsv = new TCCLSetterVisitor(cw, wovenClass.getClassName(), weavingData);
+        if (weavingData != null) {
+            final WeaveEvent event = new WeaveEvent();
+            event.begin();
+            final long startTime = System.nanoTime();
+            final Counters counters = statistics.getCounters(consumerBundle);
+            final byte[] classBytes = wovenClass.getBytes();
+            if (!FactoryCallScanner.mayInvokeFactory(classBytes)) {
+                // Nothing here for us to weave.
+                counters.classInspected(classBytes.length, -1, System.nanoTime() - startTime);
+                event.report(consumerBundle, wovenClass.getClassName(), WeaveEvent.REJECTED);
+                return;
+            }
+
             try {
-                cr.accept(tsv, SKIP_FRAMES | SKIP_DEBUG);
-                if (tsv.isWoven()) {
-                    wovenClass.setBytes(cw.toByteArray());
-                    wovenClass.getDynamicImports().addAll(tsv.getExtraImports());
+                Verdict verdict = (preWeaver == null) ? null : preWeaver.claim(wiring, wovenClass.getClassName(), classBytes);
+                if (verdict == null) {
+                    verdict = getVerdict(wiring, wovenClass.getClassName(), classBytes, weavingData);
                 }
+                apply(wovenClass, verdict);
+                counters.classInspected(classBytes.length, verdict.isWoven() ? verdict.getBytes().length : -1, System.nanoTime() - startTime);
+                event.report(consumerBundle, wovenClass.getClassName(), verdict.isWoven() ? WeaveEvent.WOVEN : WeaveEvent.NOT_WOVEN);
             } catch(RuntimeException e) {
+                counters.weaveFailed();
+                event.report(consumerBundle, wovenClass.getClassName(), WeaveEvent.FAILED);
                 System.err.println("[corda-extra-spi-weaver] ERROR " + e.getClass().getName()
                     + " while weaving " + wovenClass.getClassName() + ": " + e.getMessage());
             }
         }
     }
+
+    /**
+     * Decides how to weave this class, without modifying anything.
+     * This is safe to invoke from any thread.
+     */
+    @Nonnull
+    Verdict getVerdict(BundleWiring wiring, String className, byte[] classBytes, Set<WeavingData> weavingData) {
+        final ByteBuffer cacheKey = (digester == null) ? null : digester.keyFor(weavingData, classBytes);
+        if (cacheKey != null) {
+            final Verdict cached = getCachedVerdict(cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        final Verdict verdict = weave(wiring, className, classBytes, weavingData);
+        if (cacheKey != null && verdict.isShareable()) {
+            if (memoryCache != null) {
+                memoryCache.put(cacheKey, verdict);
+            }
+            if (cache != null) {
+                cache.put(cacheKey, verdict);
+            }
+        }
+        return verdict;
+    }
+
+    @Nullable
+    private Verdict getCachedVerdict(@Nonnull ByteBuffer cacheKey) {
+        final Verdict verdict = (memoryCache == null) ? null : memoryCache.get(cacheKey);
+        if (verdict == null && cache != null) {
+            return cache.get(cacheKey);
+        }
+        return verdict;
+    }
+
+    @Nonnull
+    private Verdict weave(BundleWiring wiring, String className, byte[] classBytes, Set<WeavingData> weavingData) {
+        final ClassReader cr = new ClassReader(classBytes);
+        final OSGiFriendlyClassWriter cw;
+        final TCCLSetterVisitor tsv;
+        if (preserveFrames) {
+            cw = new OSGiFriendlyClassWriter(cr, COMPUTE_MAXS, wiring, wiringCache);
+            tsv = new TCCLSetterVisitor(cw, className, weavingData,
+                TCCLSetterVisitor.findWovenMethods(cr, weavingData), profileCallSites, invokeDynamic);
+            cr.accept(tsv, 0);
+        } else {
+            cw = new OSGiFriendlyClassWriter(COMPUTE_FRAMES, wiring, wiringCache);
+            tsv = new TCCLSetterVisitor(cw, className, weavingData, null, profileCallSites, invokeDynamic);
+            cr.accept(tsv, SKIP_FRAMES | SKIP_DEBUG);
+        }
+        if (!tsv.isWoven()) {
+            return NOT_WOVEN;
+        }
+        return new Verdict(true, cw.toByteArray(), List.copyOf(tsv.getExtraImports()), !cw.usedClassHierarchy());
+    }
+
+    private static void apply(@Nonnull WovenClass wovenClass, @Nonnull Verdict verdict) {
+        if (verdict.isWoven()) {
+            // The caches may share these bytes with other bundles, and later
+            // weaving hooks could modify whatever array we give the class.
+            wovenClass.setBytes(verdict.getBytes().clone());
+            wovenClass.getDynamicImports().addAll(verdict.getDynamicImports());
+        }
+    }
 }
@@ -0,0 +1,188 @@
+package net.corda.spi.weaving;
+
+import javax.annotation.Nonnull;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static net.corda.spi.weaving.TCCLSetterVisitor.NEW_FACTORY;
+import static net.corda.spi.weaving.TCCLSetterVisitor.NEW_INSTANCE;
+
+/**
+ * Walks a class file's constant pool looking for a {@code Methodref} or
+ * {@code InterfaceMethodref} to one of the {@code javax.xml.stream} factory
+ * methods that {@link TCCLSetterVisitor} can rewrite. A class without such
+ * a reference cannot possibly be woven, and so we can reject it without
+ * creating any ASM objects at all.
+ * <p>
+ * This scanner is deliberately conservative: anything it does not understand
+ * is reported as a possible match, leaving ASM to deal with it.
+ */
+final class FactoryCallScanner {
+    static final int MAGIC = 0xCAFEBABE;
+    static final int CONSTANT_POOL_OFFSET = 10;
+
+    static final int CONSTANT_UTF8 = 1;
+    static final int CONSTANT_INTEGER = 3;
+    static final int CONSTANT_FLOAT = 4;
+    static final int CONSTANT_LONG = 5;
+    static final int CONSTANT_DOUBLE = 6;
+    static final int CONSTANT_CLASS = 7;
+    static final int CONSTANT_STRING = 8;
+    static final int CONSTANT_FIELDREF = 9;
+    static final int CONSTANT_METHODREF = 10;
+    static final int CONSTANT_INTERFACE_METHODREF = 11;
+    static final int CONSTANT_NAME_AND_TYPE = 12;
+    static final int CONSTANT_METHOD_HANDLE = 15;
+    static final int CONSTANT_METHOD_TYPE = 16;
+    static final int CONSTANT_DYNAMIC = 17;
+    static final int CONSTANT_INVOKE_DYNAMIC = 18;
+    static final int CONSTANT_MODULE = 19;
+    static final int CONSTANT_PACKAGE = 20;
+
+    private static final byte[][] FACTORY_TYPES = {
+        ascii("javax/xml/stream/XMLInputFactory"),
+        ascii("javax/xml/stream/XMLOutputFactory"),
+        ascii("javax/xml/stream/XMLEventFactory")
+    };
+    private static final byte[][] FACTORY_NAMES = {
+        ascii(NEW_FACTORY),
+        ascii(NEW_INSTANCE)
+    };
+
+    private FactoryCallScanner() {
+    }
+
+    @Nonnull
+    private static byte[] ascii(@Nonnull String value) {
+        return value.getBytes(US_ASCII);
+    }
+
+    /**
+     * @param classBytes The contents of a class file.
+     * @return {@code false} only if this class file definitely does not
+     * reference any of the factory methods that we weave.
+     */
+    static boolean mayInvokeFactory(@Nonnull byte[] classBytes) {
+        try {
+            return scan(classBytes);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // Malformed class file, so let ASM report it.
+            return true;
+        }
+    }
+
+    private static boolean scan(@Nonnull byte[] b) {
+        if (readInt(b, 0) != MAGIC) {
+            return true;
+        }
+
+        // First pass: record where each constant pool entry starts,
+        // and remember the entries which are method references.
+        final int constantPoolCount = readUnsignedShort(b, CONSTANT_POOL_OFFSET - 2);
+        final int[] offsets = new int[constantPoolCount];
+        int methodRefs = 0;
+        int offset = CONSTANT_POOL_OFFSET;
+        for (int i = 1; i < constantPoolCount; ++i) {
+            offsets[i] = offset;
+            switch (b[offset]) {
+            case CONSTANT_UTF8:
+                offset += 3 + readUnsignedShort(b, offset + 1);
+                break;
+            case CONSTANT_METHODREF:
+            case CONSTANT_INTERFACE_METHODREF:
+                ++methodRefs;
+                offset += 5;
+                break;
+            case CONSTANT_INTEGER:
+            case CONSTANT_FLOAT:
+            case CONSTANT_FIELDREF:
+            case CONSTANT_NAME_AND_TYPE:
+            case CONSTANT_DYNAMIC:
+            case CONSTANT_INVOKE_DYNAMIC:
+                offset += 5;
+                break;
+            case CONSTANT_LONG:
+            case CONSTANT_DOUBLE:
+                // These constants occupy two slots.
+                offset += 9;
+                ++i;
+                break;
+            case CONSTANT_CLASS:
+            case CONSTANT_STRING:
+            case CONSTANT_METHOD_TYPE:
+            case CONSTANT_MODULE:
+            case CONSTANT_PACKAGE:
+                offset += 3;
+                break;
+            case CONSTANT_METHOD_HANDLE:
+                offset += 4;
+                break;
+            default:
+                // Unknown constant, so we cannot parse any further.
+                return true;
+            }
+        }
+
+        if (offset > b.length) {
+            // Truncated class file, which may have lost a method reference.
+            return true;
+        } else if (methodRefs == 0) {
+            return false;
+        }
+
+        // Second pass: check each method reference's owner and name.
+        for (int i = 1; i < constantPoolCount; ++i) {
+            final int entry = offsets[i];
+            if (entry == 0) {
+                // Second slot of a long or double.
+                continue;
+            }
+            final int tag = b[entry];
+            if (tag == CONSTANT_METHODREF || tag == CONSTANT_INTERFACE_METHODREF) {
+                final int classEntry = offsets[readUnsignedShort(b, entry + 1)];
+                final int nameAndTypeEntry = offsets[readUnsignedShort(b, entry + 3)];
+                final int ownerUtf8 = offsets[readUnsignedShort(b, classEntry + 1)];
+                final int nameUtf8 = offsets[readUnsignedShort(b, nameAndTypeEntry + 1)];
+                if (matchesAny(b, nameUtf8, FACTORY_NAMES) && matchesAny(b, ownerUtf8, FACTORY_TYPES)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compares a {@code CONSTANT_Utf8} entry byte-for-byte with each candidate.
+     * All of our candidates are ASCII, whose modified UTF-8 encoding is the
+     * same as its ASCII encoding.
+     */
+    private static boolean matchesAny(@Nonnull byte[] b, int utf8Entry, @Nonnull byte[][] candidates) {
+        final int length = readUnsignedShort(b, utf8Entry + 1);
+        final int start = utf8Entry + 3;
+        for (byte[] candidate : candidates) {
+            if (candidate.length == length && regionMatches(b, start, candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean regionMatches(@Nonnull byte[] b, int start, @Nonnull byte[] candidate) {
+        for (int i = candidate.length - 1; i >= 0; --i) {
+            if (b[start + i] != candidate[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readUnsignedShort(@Nonnull byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+    }
+
+    private static int readInt(@Nonnull byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 24)
+            | ((b[offset + 1] & 0xFF) << 16)
+            | ((b[offset + 2] & 0xFF) << 8)
+            | (b[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,96 @@
+package net.corda.spi.weaving;
+
+import net.corda.spi.weaving.FactoryProviderCache.Entry;
+import org.osgi.framework.Bundle;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.invoke.SwitchPoint;
+import java.util.function.Supplier;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * A woven {@code INVOKEDYNAMIC} call to create an XML factory. The first call
+ * finds the factory's providers via {@link FactoryProviderCache}, and then links
+ * this call site to them so that later calls need not look them up again. The
+ * JIT can therefore inline each call down to the provider's constructor when
+ * direct instantiation is enabled.
+ * <p>
+ * Each link is guarded by the cache's {@link SwitchPoint}, and so the next call
+ * after the cache forgets its entries finds the providers again. This call site
+ * never links when there is no cache, e.g. because a SecurityManager is present.
+ */
+final class FactoryCallSite extends MutableCallSite {
+    private static final MethodHandle RELINK;
+    private static final MethodHandle CREATE_LINKED;
+
+    static {
+        final MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            RELINK = lookup.findVirtual(FactoryCallSite.class, "relink", methodType(Object.class));
+            CREATE_LINKED = lookup.findStatic(Util.class, "createLinkedXMLFactory",
+                methodType(Object.class, Bundle.class, String.class, Entry.class, Supplier.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Class<?> caller;
+    private final Bundle consumerBundle;
+    private final String callSite;
+    private final String factoryClassName;
+    private final Supplier<?> factory;
+    private final MethodHandle relink;
+
+    /**
+     * @param caller The woven class.
+     * @param callSite Identifies this call site, if we are profiling call sites.
+     * @param factory The JDK method which this call site replaced.
+     * @param type {@code ()X}, where {@code X} is the factory's class.
+     */
+    FactoryCallSite(
+        @Nonnull Class<?> caller,
+        @Nullable String callSite,
+        @Nonnull String factoryClassName,
+        @Nonnull Supplier<?> factory,
+        @Nonnull MethodType type
+    ) {
+        super(type);
+        this.caller = caller;
+        this.consumerBundle = Util.getConsumerBundle(caller);
+        this.callSite = callSite;
+        this.factoryClassName = factoryClassName;
+        this.factory = factory;
+        this.relink = RELINK.bindTo(this).asType(type);
+        setTarget(relink);
+    }
+
+    /**
+     * Creates a factory the slow way, and links this call site if it can.
+     * Other threads may continue to relink until they see the new target,
+     * which is harmless, and so we do not need {@link #syncAll}.
+     */
+    @Nullable
+    private Object relink() {
+        final FactoryProviderCache cache = (consumerBundle == null) ? null : FactoryProviderCache.getInstance(consumerBundle);
+        if (cache == null) {
+            return Util.createXMLFactory(caller, callSite, factoryClassName, factory);
+        }
+
+        final long startTime = System.nanoTime();
+        final SwitchPoint switchPoint = cache.getSwitchPoint();
+        final Entry providers = Util.findProviders(consumerBundle, factoryClassName, factoryClassName);
+        if (providers != null) {
+            final MethodHandle linked = MethodHandles.insertArguments(
+                CREATE_LINKED, 0, consumerBundle, callSite, providers, factory
+            ).asType(type());
+            setTarget(switchPoint.guardWithTest(linked, relink));
+        }
+        return Util.createXMLFactory(consumerBundle, callSite, providers, factory, startTime);
+    }
+}
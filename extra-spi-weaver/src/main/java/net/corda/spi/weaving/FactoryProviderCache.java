@@ -0,0 +1,268 @@
+package net.corda.spi.weaving;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.SynchronousBundleListener;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.SwitchPoint;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static org.osgi.framework.BundleEvent.UNINSTALLED;
+import static org.osgi.framework.BundleEvent.UNRESOLVED;
+
+/**
+ * Remembers which context class loader {@link Util} chose for each consumer
+ * bundle and XML factory, including when no bundle provides that factory.
+ * We forget everything whenever the ServiceLoader Mediator registers or
+ * unregisters a service, or when a bundle is uninstalled or unresolved,
+ * which are both rare once a framework has started.
+ * <p>
+ * Consumer bundles may also choose to share the factories that woven code
+ * creates for them, in which case each entry keeps its shared instance too.
+ */
+final class FactoryProviderCache implements ServiceListener, SynchronousBundleListener {
+    private static final String MEDIATOR_SERVICES = "(serviceloader.mediator=*)";
+
+    // Woven code reaches each framework's cache via Util's static methods.
+    private static final FrameworkRegistry<FactoryProviderCache> instances = new FrameworkRegistry<>();
+
+    private final boolean directInstantiation;
+    private final BundleIdMap<Sharing> sharing = new BundleIdMap<>();
+
+    // We replace this map rather than clear it, so that a thread which
+    // is still resolving a factory cannot store a stale result in it.
+    private volatile BundleIdMap<ConcurrentMap<String, ConcurrentMap<String, Entry>>> consumers = new BundleIdMap<>();
+
+    // Every FactoryCallSite linked to one of our entries is guarded by this.
+    private volatile SwitchPoint switchPoint = new SwitchPoint();
+
+    /**
+     * @param directInstantiation Create factories by invoking their providers'
+     * constructors directly, rather than asking the JDK to find them.
+     */
+    FactoryProviderCache(boolean directInstantiation) {
+        this.directInstantiation = directInstantiation;
+    }
+
+    /**
+     * @return The cache for this consumer bundle's framework, or {@code null} if there is none.
+     */
+    @Nullable
+    static FactoryProviderCache getInstance(@Nonnull Bundle consumerBundle) {
+        return instances.get(consumerBundle);
+    }
+
+    boolean isDirectInstantiation() {
+        return directInstantiation;
+    }
+
+    void setSharing(@Nonnull Bundle consumerBundle, @Nonnull Sharing mode) {
+        if (mode == Sharing.NONE) {
+            sharing.remove(consumerBundle.getBundleId());
+        } else {
+            sharing.put(consumerBundle.getBundleId(), mode);
+        }
+    }
+
+    void removeSharing(@Nonnull Bundle consumerBundle) {
+        sharing.remove(consumerBundle.getBundleId());
+    }
+
+    @Nonnull
+    Sharing getSharing(@Nonnull Bundle consumerBundle) {
+        final Sharing mode = sharing.get(consumerBundle.getBundleId());
+        return (mode != null) ? mode : Sharing.NONE;
+    }
+
+    /**
+     * A SecurityManager may deny some callers access to these services,
+     * in which case we never publish this cache and {@link Util} must
+     * always check. We only decide this once, for the sake of speed.
+     * We listen to bundle events synchronously, so that we forget any
+     * refreshed bundle before its consumers can look it up again.
+     */
+    void register(@Nonnull BundleContext context) throws InvalidSyntaxException {
+        context.addServiceListener(this, MEDIATOR_SERVICES);
+        context.addBundleListener(this);
+        if (System.getSecurityManager() == null) {
+            instances.register(context, this);
+        }
+    }
+
+    void unregister(@Nonnull BundleContext context) {
+        instances.unregister(this);
+        context.removeServiceListener(this);
+        context.removeBundleListener(this);
+        invalidate();
+        sharing.clear();
+    }
+
+    /**
+     * @return The entries for this consumer bundle and XML factory, keyed by the
+     * factory ID that the consumer requested. This is the factory's class name
+     * unless the consumer requested a custom factory.
+     */
+    @Nonnull
+    ConcurrentMap<String, Entry> getEntries(@Nonnull Bundle consumerBundle, @Nonnull String className) {
+        final BundleIdMap<ConcurrentMap<String, ConcurrentMap<String, Entry>>> current = consumers;
+        ConcurrentMap<String, ConcurrentMap<String, Entry>> factories = current.get(consumerBundle.getBundleId());
+        if (factories == null) {
+            final ConcurrentMap<String, ConcurrentMap<String, Entry>> created = new ConcurrentHashMap<>();
+            factories = current.putIfAbsent(consumerBundle.getBundleId(), created);
+            if (factories == null) {
+                factories = created;
+            }
+        }
+        final ConcurrentMap<String, Entry> entries = factories.get(className);
+        return (entries != null) ? entries : factories.computeIfAbsent(className, c -> new ConcurrentHashMap<>());
+    }
+
+    /**
+     * A {@link FactoryCallSite} must fetch this before it looks up its entry, so
+     * that an entry we forget meanwhile cannot remain linked to that call site.
+     */
+    @Nonnull
+    SwitchPoint getSwitchPoint() {
+        return switchPoint;
+    }
+
+    @Override
+    public void serviceChanged(@Nonnull ServiceEvent event) {
+        invalidate();
+    }
+
+    @Override
+    public void bundleChanged(@Nonnull BundleEvent event) {
+        final int type = event.getType();
+        if (type == UNINSTALLED || type == UNRESOLVED) {
+            invalidate();
+        }
+    }
+
+    private void invalidate() {
+        consumers = new BundleIdMap<>();
+        final SwitchPoint previous;
+        synchronized (this) {
+            previous = switchPoint;
+            switchPoint = new SwitchPoint();
+        }
+        SwitchPoint.invalidateAll(new SwitchPoint[] { previous });
+    }
+
+    /**
+     * How woven code shares the factories that it creates for a consumer bundle.
+     * A shared factory must not be configured once it has been created, because
+     * every caller receives the same instance.
+     */
+    enum Sharing {
+        /** Create a new factory for every call, as the JDK does. */
+        NONE,
+        /** Create one factory for all threads. */
+        SHARED,
+        /** Create one factory for each thread, for providers that are not thread-safe. */
+        PER_THREAD;
+
+        /**
+         * @throws IllegalArgumentException if this is not a valid mode.
+         */
+        @Nonnull
+        static Sharing parse(@Nullable String value) {
+            return (value == null) ? NONE : valueOf(value.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+        }
+    }
+
+    static final class Entry {
+        static final Entry NO_PROVIDERS = new Entry(null, null, Sharing.NONE);
+
+        private final ClassLoader classLoader;
+        private final MethodHandle constructor;
+        private final Sharing sharing;
+        private final ThreadLocal<Object> threadFactory;
+        private volatile Object sharedFactory;
+        private volatile ClassLoader wrapper;
+
+        Entry(@Nullable ClassLoader classLoader, @Nullable MethodHandle constructor, @Nonnull Sharing sharing) {
+            this.classLoader = classLoader;
+            this.constructor = constructor;
+            this.sharing = sharing;
+            // A thread's factory outlives this entry until the thread next
+            // touches its ThreadLocals, but providers rarely change.
+            this.threadFactory = (sharing == Sharing.PER_THREAD) ? new ThreadLocal<>() : null;
+        }
+
+        /**
+         * @return The context class loader, or {@code null} if no bundle provides this factory.
+         */
+        @Nullable
+        ClassLoader getClassLoader() {
+            return classLoader;
+        }
+
+        /**
+         * @return A {@code ()Object} handle for the provider's constructor,
+         * if we are allowed to bypass the JDK's factory lookup.
+         */
+        @Nullable
+        MethodHandle getConstructor() {
+            return constructor;
+        }
+
+        /**
+         * {@link CanonicalClassLoaders} only holds its loaders weakly,
+         * and so we hold the wrapper that the consumer last used.
+         */
+        @Nullable
+        ClassLoader getWrapper() {
+            return wrapper;
+        }
+
+        void setWrapper(@Nonnull ClassLoader wrapper) {
+            this.wrapper = wrapper;
+        }
+
+        boolean isShared() {
+            return sharing != Sharing.NONE;
+        }
+
+        /**
+         * @return The factory that this thread should reuse, or {@code null} if there isn't one yet.
+         */
+        @Nullable
+        Object getSharedFactory() {
+            return (threadFactory != null) ? threadFactory.get() : sharedFactory;
+        }
+
+        /**
+         * Offers a new factory for sharing. Threads which race to create
+         * the first shared factory all receive the same winner.
+         *
+         * @return The factory that the caller should use.
+         */
+        @Nonnull
+        Object shareFactory(@Nonnull Object factory) {
+            switch (sharing) {
+            case SHARED:
+                synchronized (this) {
+                    if (sharedFactory == null) {
+                        sharedFactory = factory;
+                    }
+                    return sharedFactory;
+                }
+            case PER_THREAD:
+                threadFactory.set(factory);
+                return factory;
+            default:
+                return factory;
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package net.corda.spi.weaving;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import org.osgi.framework.Bundle;
+
+import javax.annotation.Nonnull;
+import java.util.Collection;
+import java.util.StringJoiner;
+
+/**
+ * Records each time that {@link Util} finds the bundles which can
+ * provide an XML factory to a consumer bundle's woven code.
+ */
+@Name("net.corda.spi.weaving.FactoryResolution")
+@Label("Resolve XML Factory Providers")
+@Category({ "Corda", "SPI Weaver" })
+@Description("Bundles that can provide an XML factory to a consumer bundle")
+final class FactoryResolutionEvent extends Event {
+    @Label("Consumer Bundle")
+    String consumerBundle;
+
+    @Label("Consumer Bundle Id")
+    long consumerBundleId;
+
+    @Label("Factory Type")
+    String factoryType;
+
+    @Label("Provider Bundles")
+    String providerBundles;
+
+    @Label("Multi-Delegation")
+    @Description("Whether the providers required a MultiDelegationClassloader")
+    boolean multiDelegation;
+
+    void report(@Nonnull Bundle consumer, String factoryType, @Nonnull Collection<Bundle> providers, boolean multiDelegation) {
+        end();
+        if (shouldCommit()) {
+            this.consumerBundle = consumer.getSymbolicName();
+            this.consumerBundleId = consumer.getBundleId();
+            this.factoryType = factoryType;
+            this.providerBundles = describe(providers);
+            this.multiDelegation = multiDelegation;
+            commit();
+        }
+    }
+
+    @Nonnull
+    private static String describe(@Nonnull Collection<Bundle> bundles) {
+        final StringJoiner joiner = new StringJoiner(",");
+        for (Bundle bundle : bundles) {
+            joiner.add(bundle.getSymbolicName() + '[' + bundle.getBundleId() + ']');
+        }
+        return joiner.toString();
+    }
+}
@@ -0,0 +1,82 @@
+package net.corda.spi.weaving;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+/**
+ * Woven code reaches the weaver through {@link Util}'s static methods, but
+ * several frameworks in the same JVM may each be running their own weaver.
+ * This finds whatever the weaver registered for a consumer bundle's own
+ * framework. Frameworks come and go rarely, and so we copy on write.
+ */
+final class FrameworkRegistry<T> {
+    private static final Registration<?>[] NONE = new Registration<?>[0];
+
+    private volatile Registration<?>[] registrations = NONE;
+
+    /**
+     * @param context The weaver's context, which identifies its framework.
+     */
+    synchronized void register(@Nonnull BundleContext context, @Nonnull T value) {
+        final Registration<?>[] current = registrations;
+        final Registration<?>[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = new Registration<>(context, value);
+        registrations = updated;
+    }
+
+    /**
+     * Only removes this value, and so leaves any other framework's value alone.
+     */
+    synchronized void unregister(@Nonnull T value) {
+        registrations = Arrays.stream(registrations)
+            .filter(registration -> registration.value != value)
+            .toArray(Registration<?>[]::new);
+    }
+
+    /**
+     * When only one framework is running the weaver, every bundle
+     * with woven code must belong to it, and so we need not check.
+     * @return The value for this bundle's framework, or {@code null} if there is none.
+     */
+    @Nullable
+    T get(@Nonnull Bundle bundle) {
+        final Registration<?>[] current = registrations;
+        if (current.length == 1) {
+            return cast(current[0].value);
+        }
+        for (Registration<?> registration : current) {
+            if (registration.owns(bundle)) {
+                return cast(registration.value);
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T cast(Object value) {
+        return (T) value;
+    }
+
+    private static final class Registration<T> {
+        private final BundleContext context;
+        private final T value;
+
+        Registration(@Nonnull BundleContext context, @Nonnull T value) {
+            this.context = context;
+            this.value = value;
+        }
+
+        boolean owns(@Nonnull Bundle bundle) {
+            try {
+                return context.getBundle(bundle.getBundleId()) == bundle;
+            } catch (IllegalStateException e) {
+                // This framework is stopping.
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package net.corda.spi.weaving;
+
+import net.corda.spi.weaving.PersistentWeavingCache.Verdict;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static net.corda.spi.weaving.ClassDigester.KEY_SIZE;
+
+/**
+ * Remembers the verdicts for the classes that we have woven recently, keyed
+ * by {@link ClassDigester}, so that a bundle installed many times over is only
+ * woven once. Every bundle in every framework in this JVM which configures the
+ * same size shares this cache. Once its entries exceed {@code maxSize} bytes,
+ * we discard the least recently used of them.
+ * <p>
+ * Reading an access-ordered map also modifies it, and so this cache is split
+ * into segments which each have their own lock and a share of {@code maxSize}.
+ * The keys are digests, and so spread evenly across these segments.
+ * <p>
+ * The woven bytes can be kept outside the Java heap, in which case each
+ * {@link #get} returns a fresh copy of them.
+ */
+final class MemoryWeavingCache implements AutoCloseable {
+    // A rough estimate of what each entry costs, besides its woven bytes.
+    private static final int ENTRY_OVERHEAD = 128 + KEY_SIZE;
+    private static final int SEGMENTS = 16;
+
+    // Guarded by the class's own monitor.
+    private static final Map<String, MemoryWeavingCache> openCaches = new HashMap<>();
+
+    private final String name;
+    private final boolean offHeap;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    // Guarded by the class's own monitor.
+    private int references = 1;
+
+    private MemoryWeavingCache(@Nonnull String name, long maxSize, boolean offHeap) {
+        this.name = name;
+        this.offHeap = offHeap;
+        for (int i = 0; i < SEGMENTS; ++i) {
+            segments[i] = new Segment(maxSize / SEGMENTS);
+        }
+    }
+
+    /**
+     * @param maxSize The most bytes that this cache should occupy.
+     * @param offHeap Whether to store woven bytes in direct buffers.
+     * @return The cache that every framework with these settings shares.
+     */
+    @Nonnull
+    static synchronized MemoryWeavingCache open(long maxSize, boolean offHeap) {
+        final String name = maxSize + (offHeap ? ":off-heap" : ":heap");
+        final MemoryWeavingCache existing = openCaches.get(name);
+        if (existing != null) {
+            ++existing.references;
+            return existing;
+        }
+        final MemoryWeavingCache cache = new MemoryWeavingCache(name, maxSize, offHeap);
+        openCaches.put(name, cache);
+        return cache;
+    }
+
+    @Nullable
+    Verdict get(@Nonnull ByteBuffer key) {
+        final Entry entry = segmentFor(key).get(key);
+        return entry == null ? null : entry.toVerdict();
+    }
+
+    void put(@Nonnull ByteBuffer key, @Nonnull Verdict verdict) {
+        final Segment segment = segmentFor(key);
+        if (Entry.sizeOf(verdict) <= segment.maxSize) {
+            segment.put(key, new Entry(verdict, offHeap));
+        }
+    }
+
+    /**
+     * Discards every entry once every framework which opened this cache has closed it.
+     */
+    @Override
+    public void close() {
+        synchronized (MemoryWeavingCache.class) {
+            if (--references > 0) {
+                return;
+            }
+            openCaches.remove(name);
+        }
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    @Nonnull
+    private Segment segmentFor(@Nonnull ByteBuffer key) {
+        return segments[key.get(0) & (SEGMENTS - 1)];
+    }
+
+    private static final class Segment {
+        private final long maxSize;
+        private final LinkedHashMap<ByteBuffer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long size;
+
+        Segment(long maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        @Nullable
+        synchronized Entry get(@Nonnull ByteBuffer key) {
+            return entries.get(key);
+        }
+
+        synchronized void put(@Nonnull ByteBuffer key, @Nonnull Entry entry) {
+            final Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                size -= previous.size;
+            }
+            size += entry.size;
+
+            final Iterator<Entry> eldest = entries.values().iterator();
+            while (size > maxSize) {
+                size -= eldest.next().size;
+                eldest.remove();
+            }
+        }
+
+        synchronized void clear() {
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    private static final class Entry {
+        private final Verdict verdict;
+        private final ByteBuffer offHeapBytes;
+        private final long size;
+
+        Entry(@Nonnull Verdict verdict, boolean offHeap) {
+            if (offHeap && verdict.isWoven()) {
+                final byte[] bytes = verdict.getBytes();
+                this.verdict = new Verdict(true, null, verdict.getDynamicImports());
+                this.offHeapBytes = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+            } else {
+                this.verdict = verdict;
+                this.offHeapBytes = null;
+            }
+            this.size = sizeOf(verdict);
+        }
+
+        static long sizeOf(@Nonnull Verdict verdict) {
+            return ENTRY_OVERHEAD + (verdict.isWoven() ? verdict.getBytes().length : 0);
+        }
+
+        @Nonnull
+        Verdict toVerdict() {
+            if (offHeapBytes == null) {
+                return verdict;
+            }
+            final byte[] bytes = new byte[offHeapBytes.capacity()];
+            offHeapBytes.duplicate().get(bytes);
+            return new Verdict(true, bytes, verdict.getDynamicImports());
+        }
+    }
+}
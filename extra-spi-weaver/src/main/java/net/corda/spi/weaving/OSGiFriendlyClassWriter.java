@@ -20,8 +20,6 @@ package net.corda.spi.weaving;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
-import org.osgi.framework.wiring.BundleCapability;
-import org.osgi.framework.wiring.BundleWire;
 import org.osgi.framework.wiring.BundleWiring;
 
 import javax.annotation.Nonnull;
@@ -31,10 +29,6 @@ import java.io.InputStream;
 import java.io.UncheckedIOException;
 import java.util.Deque;
 import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
-
-import static org.osgi.framework.wiring.BundleRevision.PACKAGE_NAMESPACE;
 
 /**
  * We need to override ASM's default behaviour in {@link #getCommonSuperClass(String, String)}
@@ -45,17 +39,30 @@ final class OSGiFriendlyClassWriter extends ClassWriter {
     private static final String CLASS_EXTENSION = ".class";
 
     private final BundleWiring initialWiring;
+    private final BundleWiringCache wiringCache;
+    private boolean usedClassHierarchy;
 
-    OSGiFriendlyClassWriter(int flags, BundleWiring initialWiring) {
+    OSGiFriendlyClassWriter(int flags, BundleWiring initialWiring, BundleWiringCache wiringCache) {
         super(flags);
         this.initialWiring = initialWiring;
+        this.wiringCache = wiringCache;
+    }
+
+    /**
+     * Shares the constant pool of the original class, and copies any method
+     * that is not transformed directly from the {@link ClassReader}.
+     */
+    OSGiFriendlyClassWriter(ClassReader classReader, int flags, BundleWiring initialWiring, BundleWiringCache wiringCache) {
+        super(classReader, flags);
+        this.initialWiring = initialWiring;
+        this.wiringCache = wiringCache;
     }
 
     /**
      * We provide an implementation that doesn't cause class loads to occur. It works
      * by following the {@link BundleWiring} objects all the way back to {@link Object},
-     * linking each super class's {@code osgi.wiring.package} requirement to a bundle
-     * with a matching capability.
+     * linking each super class's package to the bundle which provides it, either via
+     * an {@code osgi.wiring.package} or an {@code osgi.wiring.bundle} requirement.
      *
      * precondition: classA and classB are not equal. (checked before this method is called)
      */
@@ -67,6 +74,7 @@ final class OSGiFriendlyClassWriter extends ClassWriter {
             return OBJECT_INTERNAL_NAME;
         }
 
+        usedClassHierarchy = true;
         final Deque<String> listA = getSuperClasses(classA);
         final Deque<String> listB = getSuperClasses(classB);
 
@@ -84,6 +92,14 @@ final class OSGiFriendlyClassWriter extends ClassWriter {
         return commonSuperClass;
     }
 
+    /**
+     * @return Whether the bytes we have written depend upon which
+     * bundles provide the super classes of the classes involved.
+     */
+    boolean usedClassHierarchy() {
+        return usedClassHierarchy;
+    }
+
     @Nonnull
     private Deque<String> getSuperClasses(String className) {
         final Deque<String> superClasses = new LinkedList<>();
@@ -101,7 +117,7 @@ final class OSGiFriendlyClassWriter extends ClassWriter {
                 // hasn't changed. Check whether this bundle wiring supports
                 // our package or must be switched for one that does.
                 packageName = nextPackageName;
-                bundleWiring = getBundleWiringFor(bundleWiring, packageName);
+                bundleWiring = wiringCache.getPackageProvider(bundleWiring, packageName);
             }
 
             final String superClassName = extractSuperClass(bundleWiring, className);
@@ -116,6 +132,18 @@ final class OSGiFriendlyClassWriter extends ClassWriter {
 
     @Nullable
     private String extractSuperClass(BundleWiring bundleWiring, String className) {
+        String superClassName = wiringCache.getSuperClass(bundleWiring, className);
+        if (superClassName == null) {
+            superClassName = readSuperClass(bundleWiring, className);
+            if (superClassName != null) {
+                wiringCache.putSuperClass(bundleWiring, className, superClassName);
+            }
+        }
+        return superClassName;
+    }
+
+    @Nullable
+    private static String readSuperClass(BundleWiring bundleWiring, String className) {
         final ClassLoader cl = bundleWiring == null ? ClassLoader.getPlatformClassLoader() : bundleWiring.getClassLoader();
         final InputStream is = cl.getResourceAsStream(className + CLASS_EXTENSION);
         if (is == null) {
@@ -123,28 +151,12 @@ final class OSGiFriendlyClassWriter extends ClassWriter {
         }
 
         try (is) {
-            return new ClassReader(is).getSuperName();
+            return ClassHeaderReader.readSuperClass(is);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
     }
 
-    private BundleWiring getBundleWiringFor(@Nonnull BundleWiring bundleWiring, String packageName) {
-        final List<BundleWire> requiredWires = bundleWiring.getRequiredWires(PACKAGE_NAMESPACE);
-        for (BundleWire requiredWire : requiredWires) {
-            final BundleCapability capability = requiredWire.getCapability();
-            if (capability != null) {
-                final Map<String, ?> attributes = capability.getAttributes();
-                final Object wirePackage = attributes.get(PACKAGE_NAMESPACE);
-                if (packageName.equals(wirePackage)) {
-                    return requiredWire.getProviderWiring();
-                }
-            }
-        }
-        // We haven't gone anywhere, so keep this wiring.
-        return bundleWiring;
-    }
-
     @Nonnull
     private static String getPackageName(@Nonnull String className) {
         int idx = className.lastIndexOf('/');
@@ -0,0 +1,547 @@
+package net.corda.spi.weaving;
+
+import org.apache.aries.spifly.WeavingData;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.unmodifiableList;
+import static java.util.logging.Level.WARNING;
+import static net.corda.spi.weaving.ClassDigester.KEY_SIZE;
+
+/**
+ * An append-only file of weaving verdicts, keyed by the SHA-256 digest of
+ * a class's original bytes and the {@link WeavingData} rules applied to it,
+ * as computed by {@link ClassDigester}.
+ * <p>
+ * Each record is:
+ * <pre>
+ *     int     length of the remainder of this record
+ *     byte[]  key (SHA-256)
+ *     byte    1 if woven, otherwise 0
+ *     short   number of dynamic imports, followed by each as modified UTF-8
+ *     int     number of woven bytes, followed by the bytes themselves
+ *     byte[]  zeros, so that the next record begins on an 8 byte boundary
+ * </pre>
+ * New records are only ever appended, under an exclusive {@link FileLock}, and
+ * so several JVMs may share the same file. Each JVM reads the records that the
+ * others have appended, via a read-only memory mapping of the whole file. We
+ * only keep each record's offset in memory, and decode it again on every hit.
+ * <p>
+ * The file grows geometrically, with zeros after its last record, and so we
+ * only need to map it again whenever its size doubles. A zero length marks
+ * the end of the records. A writer first writes the remainder of its record,
+ * followed by a zero length for the next one, and only then writes its own
+ * length. Readers therefore never see a partial record, and a writer simply
+ * overwrites any partial record left behind by a process that died.
+ * <p>
+ * A JVM cannot lock the same file twice, and so every framework in the same
+ * JVM which uses the same directory also shares the same cache.
+ * <p>
+ * This cache is only an optimisation, and so it never throws. If it cannot
+ * read or write its file then it logs why, and behaves as if it were empty
+ * from then on.
+ */
+final class PersistentWeavingCache implements AutoCloseable {
+    private static final String CACHE_FILE_NAME = "woven-classes.bin";
+    private static final int MAGIC = 0x53504957;
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_SIZE = 8;
+    private static final int ALIGNMENT = 8;
+    private static final long INITIAL_SIZE = 64 * 1024;
+    // We cannot map any more of the file than this.
+    private static final long MAX_SIZE = Integer.MAX_VALUE & -ALIGNMENT;
+    // How often a miss may look for records that other JVMs have appended.
+    private static final long REFRESH_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    static final Verdict NOT_WOVEN = new Verdict(false, null, emptyList());
+
+    // Guarded by the class's own monitor.
+    private static final Map<Path, PersistentWeavingCache> openCaches = new HashMap<>();
+
+    private final Path path;
+    private final FileChannel channel;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final OffsetIndex index = new OffsetIndex();
+
+    // Covers every record in the index.
+    private volatile ByteBuffer mapping = ByteBuffer.allocate(0);
+    private volatile long nextRefresh;
+    private volatile boolean disabled;
+    // Where the next record will begin.
+    private long indexed;
+    // Guarded by the class's own monitor.
+    private int references = 1;
+
+    private PersistentWeavingCache(Path path, FileChannel channel) {
+        this.path = path;
+        this.channel = channel;
+        this.nextRefresh = System.nanoTime();
+    }
+
+    /**
+     * @param directory Where to keep the cache file, which is created if necessary.
+     * @return The cache, or {@code null} if it could not be opened.
+     */
+    @Nullable
+    static PersistentWeavingCache open(@Nonnull Path directory) {
+        try {
+            Files.createDirectories(directory);
+            final Path path = directory.toRealPath().resolve(CACHE_FILE_NAME);
+            synchronized (PersistentWeavingCache.class) {
+                final PersistentWeavingCache existing = openCaches.get(path);
+                if (existing != null) {
+                    ++existing.references;
+                    return existing;
+                }
+
+                final FileChannel channel = FileChannel.open(path, CREATE, READ, WRITE);
+                final PersistentWeavingCache cache = new PersistentWeavingCache(path, channel);
+                try {
+                    final FileLock fileLock = channel.lock();
+                    try {
+                        cache.initialise();
+                    } finally {
+                        fileLock.release();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    channel.close();
+                    throw e;
+                }
+                openCaches.put(path, cache);
+                return cache;
+            }
+        } catch (IOException | RuntimeException e) {
+            DynamicExtraWeavingActivator.logger.log(WARNING, e, () -> "Cannot use woven class cache in " + directory);
+            return null;
+        }
+    }
+
+    private void initialise() throws IOException {
+        if (channel.size() < HEADER_SIZE) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+            channel.truncate(0);
+            channel.write(header, 0);
+        } else {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION) {
+                throw new IOException("Unrecognised woven class cache format");
+            }
+        }
+        indexed = HEADER_SIZE;
+        refresh();
+    }
+
+    /**
+     * @return The verdict, or {@code null} if there is none or this cache has failed.
+     */
+    @Nullable
+    Verdict get(@Nonnull ByteBuffer key) {
+        if (disabled) {
+            return null;
+        }
+        try {
+            Verdict verdict = find(key);
+            // Another JVM may have woven this class for us, but
+            // we only check occasionally, and never wait to do so.
+            if (verdict == null && System.nanoTime() - nextRefresh >= 0 && lock.tryLock()) {
+                try {
+                    nextRefresh = System.nanoTime() + REFRESH_INTERVAL;
+                    if (!disabled) {
+                        refresh();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                verdict = find(key);
+            }
+            return verdict;
+        } catch (IOException | RuntimeException e) {
+            // A corrupt record may also fail to decode.
+            disable(e);
+            return null;
+        }
+    }
+
+    @Nullable
+    private Verdict find(@Nonnull ByteBuffer key) {
+        final int offset = index.get(key.getLong(0));
+        if (offset == 0) {
+            return null;
+        }
+        // The index only contains records which this mapping already covers.
+        final ByteBuffer record = mapping.duplicate();
+        record.position(offset);
+        final int length = record.getInt();
+        record.limit(record.position() + length);
+        final ByteBuffer recordKey = record.duplicate();
+        recordKey.limit(recordKey.position() + KEY_SIZE);
+        // Two keys could share their first eight bytes, and so we check the whole key.
+        if (!recordKey.equals(key.duplicate().clear())) {
+            return null;
+        }
+        record.position(record.position() + KEY_SIZE);
+        return Verdict.fromRecord(record);
+    }
+
+    /**
+     * Records this verdict, unless this cache has failed.
+     */
+    void put(@Nonnull ByteBuffer key, @Nonnull Verdict verdict) {
+        lock.lock();
+        try {
+            if (disabled) {
+                return;
+            }
+            final FileLock fileLock = channel.lock();
+            try {
+                append(key, verdict);
+            } finally {
+                fileLock.release();
+            }
+        } catch (IOException | RuntimeException e) {
+            disable(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void disable(@Nonnull Exception e) {
+        synchronized (this) {
+            if (disabled) {
+                return;
+            }
+            disabled = true;
+        }
+        DynamicExtraWeavingActivator.logger.log(WARNING, e, () -> "Disabling woven class cache " + path);
+    }
+
+    private void append(@Nonnull ByteBuffer key, @Nonnull Verdict verdict) throws IOException {
+        refresh();
+        if (find(key) != null) {
+            return;
+        }
+
+        final byte[] record = verdict.toRecord(key);
+        final long position = indexed;
+        // Leave a zero length after this record, over whatever may be there already.
+        final long end = position + record.length + Integer.BYTES;
+        if (end > MAX_SIZE) {
+            return;
+        } else if (end > channel.size()) {
+            grow(end);
+        }
+
+        final ByteBuffer remainder = ByteBuffer.wrap(Arrays.copyOf(record, record.length + Integer.BYTES));
+        remainder.position(Integer.BYTES);
+        write(remainder, position + Integer.BYTES);
+        write(ByteBuffer.wrap(record, 0, Integer.BYTES), position);
+        refresh();
+    }
+
+    private void write(@Nonnull ByteBuffer buffer, long position) throws IOException {
+        final int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position() - start);
+        }
+    }
+
+    /**
+     * Doubles the file's size until it can hold this many bytes.
+     */
+    private void grow(long end) throws IOException {
+        long size = Math.max(channel.size(), INITIAL_SIZE);
+        while (size < end) {
+            size *= 2;
+        }
+        size = Math.min(size, MAX_SIZE);
+        // Writing the last byte fills the rest of the file with zeros.
+        channel.write(ByteBuffer.allocate(1), size - 1);
+    }
+
+    /**
+     * Indexes any records which have been appended since we last looked,
+     * after mapping the file again if it has grown. This must hold the lock.
+     */
+    private void refresh() throws IOException {
+        final long size = Math.min(channel.size(), MAX_SIZE);
+        if (size > mapping.capacity()) {
+            // Publish the new mapping before the offsets which need it.
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        final ByteBuffer buffer = mapping;
+        int position = (int) indexed;
+        while (position <= buffer.capacity() - Integer.BYTES) {
+            final int length = buffer.getInt(position);
+            final int start = position + Integer.BYTES;
+            if (length < KEY_SIZE || length > buffer.capacity() - start) {
+                // Nobody has finished appending a record here yet.
+                break;
+            }
+            index.putIfAbsent(buffer.getLong(start), position);
+            position = start + length;
+        }
+        indexed = position;
+    }
+
+    /**
+     * Closes the file once every framework which opened this cache has closed it.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (PersistentWeavingCache.class) {
+            if (--references > 0) {
+                return;
+            }
+            openCaches.remove(path);
+        }
+        synchronized (this) {
+            // Any further use would only fail.
+            disabled = true;
+        }
+        lock.lock();
+        try {
+            channel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Maps the first eight bytes of each key to its record's offset in the
+     * file, which is never zero because the file begins with its header. As
+     * with {@link BundleIdMap}, writers hold the cache's lock while readers
+     * probe the table without locking, and instead check that no writer
+     * modified it meanwhile.
+     */
+    private static final class OffsetIndex {
+        private static final int INITIAL_CAPACITY = 1024;
+
+        // Odd while a writer is modifying the table.
+        private volatile int version;
+        private volatile Table table = new Table(INITIAL_CAPACITY);
+        private int size;
+
+        /**
+         * @return The offset, or {@code 0} if there is none.
+         */
+        int get(long key) {
+            final int stamp = version;
+            if ((stamp & 1) == 0) {
+                final int offset = table.get(key);
+                // Finish reading the table before we check the version again.
+                VarHandle.acquireFence();
+                if (stamp == version) {
+                    return offset;
+                }
+            }
+            synchronized (this) {
+                return table.get(key);
+            }
+        }
+
+        /**
+         * Keeps the first record for each key, as we never remove any.
+         */
+        synchronized void putIfAbsent(long key, int offset) {
+            if (table.get(key) != 0) {
+                return;
+            }
+
+            beginWrite();
+            try {
+                if (2 * (size + 1) > table.capacity()) {
+                    table = table.resize(2 * table.capacity());
+                }
+                table.put(key, offset);
+                ++size;
+            } finally {
+                endWrite();
+            }
+        }
+
+        private void beginWrite() {
+            ++version;
+            // Readers must see the odd version before any of our writes.
+            VarHandle.storeStoreFence();
+        }
+
+        private void endWrite() {
+            ++version;
+        }
+    }
+
+    /**
+     * An open addressing table, which is never more than half full.
+     * An empty slot has a zero offset.
+     */
+    private static final class Table {
+        private final long[] keys;
+        private final int[] offsets;
+        private final int mask;
+
+        Table(int capacity) {
+            keys = new long[capacity];
+            offsets = new int[capacity];
+            mask = capacity - 1;
+        }
+
+        int capacity() {
+            return keys.length;
+        }
+
+        private int indexOf(long key) {
+            // The key is already part of a SHA-256 digest.
+            return (int) (key ^ (key >>> 32)) & mask;
+        }
+
+        int get(long key) {
+            int slot = indexOf(key);
+            // A reader racing with a writer may see a full table,
+            // so never probe more slots than there are.
+            for (int probes = 0; probes <= mask; ++probes) {
+                final int offset = offsets[slot];
+                if (offset == 0) {
+                    return 0;
+                } else if (keys[slot] == key) {
+                    return offset;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return 0;
+        }
+
+        void put(long key, int offset) {
+            int slot = indexOf(key);
+            while (offsets[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            offsets[slot] = offset;
+        }
+
+        @Nonnull
+        Table resize(int capacity) {
+            final Table resized = new Table(capacity);
+            for (int i = 0; i < offsets.length; ++i) {
+                if (offsets[i] != 0) {
+                    resized.put(keys[i], offsets[i]);
+                }
+            }
+            return resized;
+        }
+    }
+
+    /**
+     * The outcome of weaving a single class.
+     */
+    static final class Verdict {
+        private final boolean woven;
+        private final byte[] bytes;
+        private final List<String> dynamicImports;
+        private final boolean shareable;
+
+        Verdict(boolean woven, @Nullable byte[] bytes, @Nonnull List<String> dynamicImports) {
+            this(woven, bytes, dynamicImports, true);
+        }
+
+        /**
+         * @param shareable Whether this verdict depends only on the original class
+         * and the rules, and not on which bundles provide its super classes.
+         */
+        Verdict(boolean woven, @Nullable byte[] bytes, @Nonnull List<String> dynamicImports, boolean shareable) {
+            this.woven = woven;
+            this.bytes = bytes;
+            this.dynamicImports = dynamicImports;
+            this.shareable = shareable;
+        }
+
+        boolean isWoven() {
+            return woven;
+        }
+
+        @Nullable
+        byte[] getBytes() {
+            return bytes;
+        }
+
+        @Nonnull
+        List<String> getDynamicImports() {
+            return dynamicImports;
+        }
+
+        boolean isShareable() {
+            return shareable;
+        }
+
+        @Nonnull
+        private byte[] toRecord(@Nonnull ByteBuffer key) throws IOException {
+            final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (DataOutputStream dos = new DataOutputStream(bos)) {
+                // Placeholder for the length.
+                dos.writeInt(0);
+                dos.write(key.array());
+                dos.writeBoolean(woven);
+                dos.writeShort(dynamicImports.size());
+                for (String dynamicImport : dynamicImports) {
+                    dos.writeUTF(dynamicImport);
+                }
+                if (bytes == null) {
+                    dos.writeInt(0);
+                } else {
+                    dos.writeInt(bytes.length);
+                    dos.write(bytes);
+                }
+                while (dos.size() % ALIGNMENT != 0) {
+                    dos.writeByte(0);
+                }
+            }
+            final byte[] record = bos.toByteArray();
+            ByteBuffer.wrap(record).putInt(record.length - Integer.BYTES);
+            return record;
+        }
+
+        @Nonnull
+        private static Verdict fromRecord(@Nonnull ByteBuffer record) {
+            if (record.get() == 0) {
+                return NOT_WOVEN;
+            }
+
+            final int importCount = Short.toUnsignedInt(record.getShort());
+            final List<String> dynamicImports = new ArrayList<>(importCount);
+            for (int i = 0; i < importCount; ++i) {
+                final byte[] utf = new byte[Short.toUnsignedInt(record.getShort())];
+                record.get(utf);
+                // All of our package names are ASCII, which makes modified UTF-8 the same as UTF-8.
+                dynamicImports.add(new String(utf, UTF_8));
+            }
+            final byte[] bytes = new byte[record.getInt()];
+            record.get(bytes);
+            return new Verdict(true, bytes, unmodifiableList(dynamicImports));
+        }
+    }
+}
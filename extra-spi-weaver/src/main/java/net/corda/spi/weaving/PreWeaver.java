@@ -0,0 +1,182 @@
+package net.corda.spi.weaving;
+
+import net.corda.spi.weaving.PersistentWeavingCache.Verdict;
+import org.apache.aries.spifly.WeavingData;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleWiring;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Weaves a consumer bundle's classes in the background as soon as that bundle
+ * is resolved, so that {@link DynamicExtraWeavingHook} can usually just collect
+ * the result instead of weaving on the class-loading thread. The hook "claims"
+ * a class by running its task itself, which is a no-op if the pool has already
+ * finished it, and so the hook never waits for a task that hasn't started yet.
+ */
+final class PreWeaver {
+    private static final String CLASS_EXTENSION = ".class";
+
+    private final DynamicExtraWeavingHook hook;
+    private final ForkJoinPool pool;
+    private final BundleIdMap<PreWovenWiring> preWoven = new BundleIdMap<>();
+
+    PreWeaver(DynamicExtraWeavingHook hook, int parallelism) {
+        this.hook = hook;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    void shutdown() {
+        pool.shutdownNow();
+        preWoven.clear();
+    }
+
+    /**
+     * Starts weaving the classes inside this bundle wiring, unless we have done so already.
+     */
+    synchronized void schedule(@Nonnull BundleWiring wiring, @Nonnull Set<WeavingData> weavingData) {
+        if (!wiring.isCurrent()) {
+            return;
+        }
+        final long bundleId = wiring.getBundle().getBundleId();
+        final PreWovenWiring existing = preWoven.get(bundleId);
+        if (existing != null) {
+            if (existing.wiring == wiring) {
+                return;
+            }
+            // We only pre-weave a bundle's current wiring.
+            preWoven.remove(bundleId);
+        }
+
+        final PreWovenWiring preWovenWiring = new PreWovenWiring(wiring);
+        preWoven.putIfAbsent(bundleId, preWovenWiring);
+        pool.execute(() -> scan(wiring, weavingData, preWovenWiring.tasks));
+    }
+
+    /**
+     * Forgets this bundle's wiring, once it is unresolved, updated or uninstalled.
+     */
+    synchronized void discard(@Nonnull Bundle bundle) {
+        preWoven.remove(bundle.getBundleId());
+    }
+
+    private void scan(BundleWiring wiring, Set<WeavingData> weavingData, ConcurrentMap<String, FutureTask<PreWoven>> tasks) {
+        final Enumeration<URL> entries;
+        try {
+            entries = wiring.getBundle().findEntries("/", '*' + CLASS_EXTENSION, true);
+        } catch (IllegalStateException e) {
+            // This bundle has been uninstalled.
+            return;
+        }
+        if (entries == null) {
+            return;
+        }
+
+        while (entries.hasMoreElements()) {
+            final URL entry = entries.nextElement();
+            final String className = getClassName(entry.getPath());
+            if (className == null) {
+                continue;
+            }
+
+            final byte[] classBytes;
+            try (InputStream input = entry.openStream()) {
+                classBytes = input.readAllBytes();
+            } catch (IOException e) {
+                DynamicExtraWeavingActivator.logger.log(FINE, e, () -> "Cannot pre-weave " + entry);
+                continue;
+            }
+
+            if (FactoryCallScanner.mayInvokeFactory(classBytes)) {
+                final FutureTask<PreWoven> task = new FutureTask<>(() ->
+                    new PreWoven(classBytes, hook.getVerdict(wiring, className, classBytes, weavingData))
+                );
+                if (tasks.putIfAbsent(className, task) == null) {
+                    pool.execute(task);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The verdict for this class, or {@code null} if it was not
+     * pre-woven or the bytes being loaded are not the bytes we pre-wove.
+     */
+    @Nullable
+    Verdict claim(@Nonnull BundleWiring wiring, @Nonnull String className, @Nonnull byte[] classBytes) {
+        final PreWovenWiring preWovenWiring = preWoven.get(wiring.getBundle().getBundleId());
+        if (preWovenWiring == null || preWovenWiring.wiring != wiring) {
+            return null;
+        }
+        final FutureTask<PreWoven> task = preWovenWiring.tasks.remove(className);
+        if (task == null) {
+            return null;
+        }
+
+        // Run this task ourselves if the pool hasn't started it yet.
+        task.run();
+
+        final PreWoven result;
+        try {
+            result = task.get();
+        } catch (ExecutionException e) {
+            // Let the hook try again, and report the failure.
+            DynamicExtraWeavingActivator.logger.log(WARNING, e.getCause(), () -> "Failed to pre-weave " + className);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        // Another weaving hook may have modified this class already.
+        return Arrays.equals(result.classBytes, classBytes) ? result.verdict : null;
+    }
+
+    @Nullable
+    private static String getClassName(@Nonnull String path) {
+        // Only consider classes on the bundle's default class path.
+        final int start = path.startsWith("/") ? 1 : 0;
+        if (path.startsWith("META-INF/", start) || path.startsWith("OSGI-INF/", start)) {
+            return null;
+        }
+        final String resourceName = path.substring(start, path.length() - CLASS_EXTENSION.length());
+        if (resourceName.endsWith("module-info") || resourceName.endsWith("package-info")) {
+            return null;
+        }
+        return resourceName.replace('/', '.');
+    }
+
+    private static final class PreWovenWiring {
+        private final BundleWiring wiring;
+        private final ConcurrentMap<String, FutureTask<PreWoven>> tasks = new ConcurrentHashMap<>();
+
+        PreWovenWiring(BundleWiring wiring) {
+            this.wiring = wiring;
+        }
+    }
+
+    private static final class PreWoven {
+        private final byte[] classBytes;
+        private final Verdict verdict;
+
+        PreWoven(byte[] classBytes, Verdict verdict) {
+            this.classBytes = classBytes;
+            this.verdict = verdict;
+        }
+    }
+}
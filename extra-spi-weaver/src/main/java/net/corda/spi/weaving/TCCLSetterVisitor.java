@@ -19,10 +19,12 @@
 package net.corda.spi.weaving;
 
 import org.apache.aries.spifly.WeavingData;
+import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Type;
-import org.objectweb.asm.commons.GeneratorAdapter;
 import org.objectweb.asm.commons.Method;
 
 import javax.annotation.Nonnull;
@@ -30,12 +32,19 @@ import javax.annotation.Nullable;
 import javax.xml.stream.XMLEventFactory;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLOutputFactory;
-import java.util.Arrays;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.Set;
 
+import static org.objectweb.asm.ClassReader.SKIP_DEBUG;
+import static org.objectweb.asm.ClassReader.SKIP_FRAMES;
 import static org.objectweb.asm.Opcodes.ASM9;
+import static org.objectweb.asm.Opcodes.H_INVOKESTATIC;
 import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.V1_7;
 
 /**
  * This class implements an ASM ClassVisitor which puts the appropriate ThreadContextClassloader
@@ -46,6 +55,19 @@ class TCCLSetterVisitor extends ClassVisitor {
     private static final Type CLASS_TYPE = Type.getType(Class.class);
     private static final Type STRING_TYPE = Type.getType(String.class);
     private static final Type UTIL_CLASS = Type.getType(Util.class);
+    private static final Handle FACTORY_BOOTSTRAP = new Handle(
+        H_INVOKESTATIC,
+        UTIL_CLASS.getInternalName(),
+        "bootstrapXMLFactory",
+        Type.getMethodDescriptor(
+            Type.getType(CallSite.class),
+            Type.getType(MethodHandles.Lookup.class),
+            STRING_TYPE,
+            Type.getType(MethodType.class),
+            STRING_TYPE
+        ),
+        false
+    );
 
     static final String NEW_FACTORY = "newFactory";
     static final String NEW_INSTANCE = "newInstance";
@@ -61,17 +83,82 @@ class TCCLSetterVisitor extends ClassVisitor {
     );
 
     private final Type targetClass;
-    private final Set<WeavingData> weavingData;
+    private final CallSiteMatcher matcher;
+    private final Set<String> wovenMethods;
     private final Set<String> extraImports;
+    private final boolean profileCallSites;
+    private final boolean invokeDynamic;
+
+    // Only Java 7 class files can contain invokedynamic.
+    private boolean supportsInvokeDynamic;
 
     // This field is true when the class was woven
     private boolean woven = false;
 
     TCCLSetterVisitor(ClassVisitor cv, @Nonnull String className, Set<WeavingData> weavingData) {
+        this(cv, className, weavingData, null);
+    }
+
+    /**
+     * @param wovenMethods The name and descriptor of every method that needs
+     * weaving, as returned by {@link #findWovenMethods}. Any other method will
+     * be handed straight back to the delegate {@link ClassVisitor}, which allows
+     * a {@link org.objectweb.asm.ClassWriter} to copy it without regenerating it.
+     * If {@code null} then every method is inspected.
+     */
+    TCCLSetterVisitor(ClassVisitor cv, @Nonnull String className, Set<WeavingData> weavingData, @Nullable Set<String> wovenMethods) {
+        this(cv, className, weavingData, wovenMethods, false);
+    }
+
+    /**
+     * @param profileCallSites Also pass a constant identifying each call site
+     * to {@link Util}, which then profiles every call site separately.
+     */
+    TCCLSetterVisitor(ClassVisitor cv, @Nonnull String className, Set<WeavingData> weavingData,
+                      @Nullable Set<String> wovenMethods, boolean profileCallSites) {
+        this(cv, className, weavingData, wovenMethods, profileCallSites, false);
+    }
+
+    /**
+     * @param invokeDynamic Replace each call which does not name a factory with
+     * an {@code INVOKEDYNAMIC} instruction, which {@link Util#bootstrapXMLFactory}
+     * links to the factory's providers. Older class files still invoke {@link Util}.
+     */
+    TCCLSetterVisitor(ClassVisitor cv, @Nonnull String className, Set<WeavingData> weavingData,
+                      @Nullable Set<String> wovenMethods, boolean profileCallSites, boolean invokeDynamic) {
         super(ASM9, cv);
         this.targetClass = Type.getObjectType(className.replace('.', '/'));
-        this.weavingData = weavingData;
+        this.matcher = CallSiteMatcher.forRules(weavingData);
+        this.wovenMethods = wovenMethods;
         this.extraImports = new LinkedHashSet<>();
+        this.profileCallSites = profileCallSites;
+        this.invokeDynamic = invokeDynamic;
+    }
+
+    /**
+     * Visits every method invocation in the class, but writes nothing.
+     * @return The name and descriptor of every method containing at least
+     * one invocation that {@link TCCLSetterVisitor} will rewrite.
+     */
+    @Nonnull
+    static Set<String> findWovenMethods(@Nonnull ClassReader cr, Set<WeavingData> weavingData) {
+        final CallSiteMatcher matcher = CallSiteMatcher.forRules(weavingData);
+        final Set<String> wovenMethods = new HashSet<>();
+        cr.accept(new ClassVisitor(ASM9) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                final String methodKey = name + desc;
+                return new MethodVisitor(api) {
+                    @Override
+                    public void visitMethodInsn(int opcode, String owner, String methodName, String methodDesc, boolean itf) {
+                        if (opcode == INVOKESTATIC && isWeavable(matcher.match(owner, methodName, methodDesc))) {
+                            wovenMethods.add(methodKey);
+                        }
+                    }
+                };
+            }
+        }, SKIP_DEBUG | SKIP_FRAMES);
+        return wovenMethods;
     }
 
     Set<String> getExtraImports() {
@@ -82,15 +169,42 @@ class TCCLSetterVisitor extends ClassVisitor {
         return woven;
     }
 
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        // The minor version is in the upper 16 bits.
+        supportsInvokeDynamic = (version & 0xFFFF) >= V1_7;
+        super.visit(version, access, name, signature, superName, interfaces);
+    }
+
     @Override
     public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
         MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
-        return (mv == null) ? null : new TCCLSetterMethodVisitor(api, mv, access, name, desc);
+        if (mv == null || (wovenMethods != null && !wovenMethods.contains(name + desc))) {
+            return mv;
+        }
+        return new TCCLSetterMethodVisitor(api, mv, name);
     }
 
-    private class TCCLSetterMethodVisitor extends GeneratorAdapter {
-        TCCLSetterMethodVisitor(int api, MethodVisitor mv, int access, String name, String descriptor) {
-            super(api, mv, access, name, descriptor);
+    /**
+     * We only insert an {@code LDC} and replace an {@code INVOKESTATIC}, and so
+     * deliberately avoid {@link org.objectweb.asm.commons.GeneratorAdapter} here.
+     * Its {@link org.objectweb.asm.commons.LocalVariablesSorter} would renumber
+     * the method's local variables, and also rejects compressed stack map frames.
+     */
+    private class TCCLSetterMethodVisitor extends MethodVisitor {
+        private final String methodName;
+        private int lineNumber;
+        private int wovenCalls;
+
+        TCCLSetterMethodVisitor(int api, MethodVisitor mv, String methodName) {
+            super(api, mv);
+            this.methodName = methodName;
+        }
+
+        @Override
+        public void visitLineNumber(int line, Label start) {
+            lineNumber = line;
+            super.visitLineNumber(line, start);
         }
 
         @Override
@@ -100,7 +214,7 @@ class TCCLSetterVisitor extends ClassVisitor {
                 return;
             }
 
-            final WeavingData weavingData = findWeavingData(owner, name, desc);
+            final WeavingData weavingData = matcher.match(owner, name, desc);
             if (weavingData == null) {
                 super.visitMethodInsn(opcode, owner, name, desc, itf);
                 return;
@@ -111,38 +225,55 @@ class TCCLSetterVisitor extends ClassVisitor {
             final String[] serviceArgClasses = weavingData.getArgClasses();
 
             // XMLFactory.newInstance(..) and XMLFactory.newFactory(..)
-            if (FACTORY_TYPES.contains(serviceClassName) && FACTORY_NAMES.contains(serviceMethodName) && serviceArgClasses != null) {
-                visitLdcInsn(targetClass);
-                invokeStatic(UTIL_CLASS, new Method(
+            if (isWeavable(weavingData)) {
+                if (serviceArgClasses.length == 0 && invokeDynamic && supportsInvokeDynamic) {
+                    ++wovenCalls;
+                    super.visitInvokeDynamicInsn(serviceMethodName, desc, FACTORY_BOOTSTRAP, profileCallSites ? getCallSite() : "");
+                    extraImports.add(Util.class.getPackageName());
+                    woven = true;
+                    return;
+                }
+
+                final Type[] utilArgTypes;
+                if (serviceArgClasses.length == 0) {
+                    utilArgTypes = profileCallSites ? new Type[] { CLASS_TYPE, STRING_TYPE } : new Type[] { CLASS_TYPE };
+                } else {
+                    utilArgTypes = profileCallSites
+                        ? new Type[] { STRING_TYPE, CLASSLOADER_TYPE, CLASS_TYPE, STRING_TYPE }
+                        : new Type[] { STRING_TYPE, CLASSLOADER_TYPE, CLASS_TYPE };
+                }
+                final Method utilMethod = new Method(
                     "new" + serviceClassName.substring(serviceClassName.lastIndexOf('.') + 1) + serviceMethodName.substring(3),
                     Type.getReturnType(desc),
-                    serviceArgClasses.length == 0
-                        ? new Type[] { CLASS_TYPE }
-                        : new Type[] { STRING_TYPE, CLASSLOADER_TYPE, CLASS_TYPE }
-                ));
+                    utilArgTypes
+                );
+                super.visitLdcInsn(targetClass);
+                ++wovenCalls;
+                if (profileCallSites) {
+                    super.visitLdcInsn(getCallSite());
+                }
+                super.visitMethodInsn(INVOKESTATIC, UTIL_CLASS.getInternalName(), utilMethod.getName(), utilMethod.getDescriptor(), false);
 
                 extraImports.add(Util.class.getPackageName());
                 woven = true;
             }
         }
 
-        @Nullable
-        private WeavingData findWeavingData(String owner, String methodName, String methodDesc) {
-            final Type[] argTypes = Type.getArgumentTypes(methodDesc);
-            String[] argClassNames = new String[argTypes.length];
-            for (int i = 0; i < argTypes.length; i++) {
-                argClassNames[i] = argTypes[i].getClassName();
-            }
-
-            final String internalOwner = owner.replace('/', '.');
-            for (WeavingData wd : weavingData) {
-                if (wd.getClassName().equals(internalOwner) &&
-                    wd.getMethodName().equals(methodName) &&
-                    (wd.getArgClasses() == null || Arrays.equals(argClassNames, wd.getArgClasses()))) {
-                    return wd;
-                }
-            }
-            return null;
+        /**
+         * Identifies this call by its line number, or else by its position
+         * within the method when the class has no debug information.
+         */
+        @Nonnull
+        private String getCallSite() {
+            final String location = (lineNumber > 0) ? (":" + lineNumber) : ("#" + wovenCalls);
+            return targetClass.getClassName() + '.' + methodName + location;
         }
     }
+
+    private static boolean isWeavable(@Nullable WeavingData weavingData) {
+        return weavingData != null
+            && FACTORY_TYPES.contains(weavingData.getClassName())
+            && FACTORY_NAMES.contains(weavingData.getMethodName())
+            && weavingData.getArgClasses() != null;
+    }
 }
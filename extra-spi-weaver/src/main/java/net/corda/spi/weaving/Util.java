@@ -18,7 +18,10 @@
  */
 package net.corda.spi.weaving;
 
+import net.corda.spi.weaving.FactoryProviderCache.Entry;
+import net.corda.spi.weaving.FactoryProviderCache.Sharing;
 import org.apache.aries.spifly.MultiDelegationClassloader;
+import org.apache.aries.spifly.MultiDelegationClassloader.MissingClassException;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleReference;
@@ -33,22 +36,37 @@ import javax.xml.stream.XMLEventFactory;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLOutputFactory;
 import java.io.IOException;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.UndeclaredThrowableException;
 import java.net.URL;
 import java.security.AccessControlException;
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.function.BiFunction;
 import java.util.function.Supplier;
 import java.util.logging.Logger;
 
+import static java.lang.invoke.MethodType.methodType;
 import static java.security.AccessController.doPrivileged;
+import static java.util.Collections.emptySet;
+import static java.util.Comparator.comparingLong;
 import static java.util.logging.Level.FINE;
 import static java.util.logging.Level.SEVERE;
+import static net.corda.spi.weaving.TCCLSetterVisitor.NEW_FACTORY;
+import static net.corda.spi.weaving.TCCLSetterVisitor.NEW_INSTANCE;
 import static org.osgi.framework.ServicePermission.GET;
 
 /**
@@ -60,70 +78,194 @@ public final class Util {
     // - That we only select services registered by the OSGi ServiceLoader Mediator.
     // - That the Mediator has been installed as an OSGi Framework Extension.
     private static final String PROVIDED_BY_SERVICELOADER_MEDIATOR = "(serviceloader.mediator=0)";
+    // The Mediator records the class which provides each service.
+    private static final String PROVIDER_IMPLCLASS_PROPERTY = ".org.apache.aries.spifly.provider.implclass";
     private static final Logger logger = DynamicExtraWeavingActivator.logger;
 
+    // A class's bundle never changes, and so we only need to ask once.
+    private static final ClassValue<Bundle> CONSUMER_BUNDLES = new ClassValue<>() {
+        @Override
+        @Nullable
+        protected Bundle computeValue(@Nonnull Class<?> type) {
+            final ClassLoader bundleLoader = doPrivileged((PrivilegedAction<? extends ClassLoader>) type::getClassLoader);
+            if (!(bundleLoader instanceof BundleReference)) {
+                logger.log(FINE, "Classloader of consuming bundle doesn't implement BundleReference: {0}", bundleLoader);
+                return null;
+            }
+            return ((BundleReference) bundleLoader).getBundle();
+        }
+    };
+
+    // The JDK methods which woven INVOKEDYNAMIC instructions replace.
+    private static final Map<String, Supplier<?>> JDK_FACTORIES = Map.of(
+        XMLInputFactory.class.getName() + '.' + NEW_FACTORY, XMLInputFactory::newFactory,
+        XMLInputFactory.class.getName() + '.' + NEW_INSTANCE, XMLInputFactory::newInstance,
+        XMLOutputFactory.class.getName() + '.' + NEW_FACTORY, XMLOutputFactory::newFactory,
+        XMLOutputFactory.class.getName() + '.' + NEW_INSTANCE, XMLOutputFactory::newInstance,
+        XMLEventFactory.class.getName() + '.' + NEW_FACTORY, XMLEventFactory::newFactory,
+        XMLEventFactory.class.getName() + '.' + NEW_INSTANCE, XMLEventFactory::newInstance
+    );
+
+    private static final CanonicalClassLoaders<MultiDelegationClassloader> MULTI_DELEGATION_LOADERS =
+        new CanonicalClassLoaders<>(MultiDelegationClassloader::new);
+    private static final CanonicalClassLoaders<WrapperCL> WRAPPERS =
+        new CanonicalClassLoaders<>(delegates -> new WrapperCL(delegates[0], delegates[1]));
+
     public static XMLInputFactory newXMLInputFactoryFactory(String factoryId, ClassLoader specifiedClassLoader, Class<?> caller) {
-        return createXMLFactory(factoryId, specifiedClassLoader, caller, XMLInputFactory.class.getName(), XMLInputFactory::newFactory);
+        return createXMLFactory(factoryId, specifiedClassLoader, caller, null, XMLInputFactory.class.getName(), XMLInputFactory::newFactory);
+    }
+
+    public static XMLInputFactory newXMLInputFactoryFactory(String factoryId, ClassLoader specifiedClassLoader, Class<?> caller, String callSite) {
+        return createXMLFactory(factoryId, specifiedClassLoader, caller, callSite, XMLInputFactory.class.getName(), XMLInputFactory::newFactory);
     }
 
     public static XMLInputFactory newXMLInputFactoryFactory(Class<?> caller) {
-        return createXMLFactory(caller, XMLInputFactory.class.getName(), XMLInputFactory::newFactory);
+        return createXMLFactory(caller, null, XMLInputFactory.class.getName(), XMLInputFactory::newFactory);
+    }
+
+    public static XMLInputFactory newXMLInputFactoryFactory(Class<?> caller, String callSite) {
+        return createXMLFactory(caller, callSite, XMLInputFactory.class.getName(), XMLInputFactory::newFactory);
     }
 
     @SuppressWarnings("deprecation")
     public static XMLInputFactory newXMLInputFactoryInstance(String factoryId, ClassLoader specifiedClassLoader, Class<?> caller) {
-        return createXMLFactory(factoryId, specifiedClassLoader, caller, XMLInputFactory.class.getName(), XMLInputFactory::newInstance);
+        return createXMLFactory(factoryId, specifiedClassLoader, caller, null, XMLInputFactory.class.getName(), XMLInputFactory::newInstance);
+    }
+
+    @SuppressWarnings("deprecation")
+    public static XMLInputFactory newXMLInputFactoryInstance(String factoryId, ClassLoader specifiedClassLoader, Class<?> caller, String callSite) {
+        return createXMLFactory(factoryId, specifiedClassLoader, caller, callSite, XMLInputFactory.class.getName(), XMLInputFactory::newInstance);
     }
 
     public static XMLInputFactory newXMLInputFactoryInstance(Class<?> caller) {
-        return createXMLFactory(caller, XMLInputFactory.class.getName(), XMLInputFactory::newInstance);
+        return createXMLFactory(caller, null, XMLInputFactory.class.getName(), XMLInputFactory::newInstance);
+    }
+
+    public static XMLInputFactory newXMLInputFactoryInstance(Class<?> caller, String callSite) {
+        return createXMLFactory(caller, callSite, XMLInputFactory.class.getName(), XMLInputFactory::newInstance);
     }
 
     public static XMLOutputFactory newXMLOutputFactoryFactory(String factoryId, ClassLoader specifiedClassLoader, Class<?> caller) {
-        return createXMLFactory(factoryId, specifiedClassLoader, caller, XMLOutputFactory.class.getName(), XMLOutputFactory::newFactory);
+        return createXMLFactory(factoryId, specifiedClassLoader, caller, null, XMLOutputFactory.class.getName(), XMLOutputFactory::newFactory);
+    }
+
+    public static XMLOutputFactory newXMLOutputFactoryFactory(String factoryId, ClassLoader specifiedClassLoader, Class<?> caller, String callSite) {
+        return createXMLFactory(factoryId, specifiedClassLoader, caller, callSite, XMLOutputFactory.class.getName(), XMLOutputFactory::newFactory);
     }
 
     public static XMLOutputFactory newXMLOutputFactoryFactory(Class<?> caller) {
-        return createXMLFactory(caller, XMLOutputFactory.class.getName(), XMLOutputFactory::newFactory);
+        return createXMLFactory(caller, null, XMLOutputFactory.class.getName(), XMLOutputFactory::newFactory);
+    }
+
+    public static XMLOutputFactory newXMLOutputFactoryFactory(Class<?> caller, String callSite) {
+        return createXMLFactory(caller, callSite, XMLOutputFactory.class.getName(), XMLOutputFactory::newFactory);
     }
 
     @SuppressWarnings("deprecation")
     public static XMLInputFactory newXMLOutputFactoryInstance(String factoryId, ClassLoader specifiedClassLoader, Class<?> caller) {
-        return createXMLFactory(factoryId, specifiedClassLoader, caller, XMLOutputFactory.class.getName(), XMLOutputFactory::newInstance);
+        return createXMLFactory(factoryId, specifiedClassLoader, caller, null, XMLOutputFactory.class.getName(), XMLOutputFactory::newInstance);
+    }
+
+    @SuppressWarnings("deprecation")
+    public static XMLInputFactory newXMLOutputFactoryInstance(String factoryId, ClassLoader specifiedClassLoader, Class<?> caller, String callSite) {
+        return createXMLFactory(factoryId, specifiedClassLoader, caller, callSite, XMLOutputFactory.class.getName(), XMLOutputFactory::newInstance);
     }
 
     public static XMLOutputFactory newXMLOutputFactoryInstance(Class<?> caller) {
-        return createXMLFactory(caller, XMLOutputFactory.class.getName(), XMLOutputFactory::newInstance);
+        return createXMLFactory(caller, null, XMLOutputFactory.class.getName(), XMLOutputFactory::newInstance);
+    }
+
+    public static XMLOutputFactory newXMLOutputFactoryInstance(Class<?> caller, String callSite) {
+        return createXMLFactory(caller, callSite, XMLOutputFactory.class.getName(), XMLOutputFactory::newInstance);
     }
 
     public static XMLEventFactory newXMLEventFactoryFactory(String factoryId, ClassLoader specifiedClassLoader, Class<?> caller) {
-        return createXMLFactory(factoryId, specifiedClassLoader, caller, XMLEventFactory.class.getName(), XMLEventFactory::newFactory);
+        return createXMLFactory(factoryId, specifiedClassLoader, caller, null, XMLEventFactory.class.getName(), XMLEventFactory::newFactory);
+    }
+
+    public static XMLEventFactory newXMLEventFactoryFactory(String factoryId, ClassLoader specifiedClassLoader, Class<?> caller, String callSite) {
+        return createXMLFactory(factoryId, specifiedClassLoader, caller, callSite, XMLEventFactory.class.getName(), XMLEventFactory::newFactory);
     }
 
     public static XMLEventFactory newXMLEventFactoryFactory(Class<?> caller) {
-        return createXMLFactory(caller, XMLEventFactory.class.getName(), XMLEventFactory::newFactory);
+        return createXMLFactory(caller, null, XMLEventFactory.class.getName(), XMLEventFactory::newFactory);
+    }
+
+    public static XMLEventFactory newXMLEventFactoryFactory(Class<?> caller, String callSite) {
+        return createXMLFactory(caller, callSite, XMLEventFactory.class.getName(), XMLEventFactory::newFactory);
     }
 
     @SuppressWarnings("deprecation")
     public static XMLEventFactory newXMLEventFactoryInstance(String factoryId, ClassLoader specifiedClassLoader, Class<?> caller) {
-        return createXMLFactory(factoryId, specifiedClassLoader, caller, XMLEventFactory.class.getName(), XMLEventFactory::newInstance);
+        return createXMLFactory(factoryId, specifiedClassLoader, caller, null, XMLEventFactory.class.getName(), XMLEventFactory::newInstance);
+    }
+
+    @SuppressWarnings("deprecation")
+    public static XMLEventFactory newXMLEventFactoryInstance(String factoryId, ClassLoader specifiedClassLoader, Class<?> caller, String callSite) {
+        return createXMLFactory(factoryId, specifiedClassLoader, caller, callSite, XMLEventFactory.class.getName(), XMLEventFactory::newInstance);
     }
 
     public static XMLEventFactory newXMLEventFactoryInstance(Class<?> caller) {
-        return createXMLFactory(caller, XMLEventFactory.class.getName(), XMLEventFactory::newInstance);
+        return createXMLFactory(caller, null, XMLEventFactory.class.getName(), XMLEventFactory::newInstance);
+    }
+
+    public static XMLEventFactory newXMLEventFactoryInstance(Class<?> caller, String callSite) {
+        return createXMLFactory(caller, callSite, XMLEventFactory.class.getName(), XMLEventFactory::newInstance);
     }
 
-    private static <X> X createXMLFactory(@Nonnull Class<?> caller, String factoryClassName, Supplier<X> factory) {
-        final ClassLoader bundleLoader = doPrivileged((PrivilegedAction<? extends ClassLoader>)caller::getClassLoader);
-        if (!(bundleLoader instanceof BundleReference)) {
-            logger.log(FINE, "Classloader of consuming bundle doesn't implement BundleReference: {0}", bundleLoader);
+    static <X> X createXMLFactory(
+        @Nonnull Class<?> caller,
+        @Nullable String callSite,
+        String factoryClassName,
+        Supplier<X> factory
+    ) {
+        final Bundle consumerBundle = getConsumerBundle(caller);
+        if (consumerBundle == null) {
             return factory.get();
         }
 
-        final ClassLoader bundleClassLoader = findContextClassloader(
-            ((BundleReference)bundleLoader).getBundle(), factoryClassName, factoryClassName
-        );
+        final long startTime = System.nanoTime();
+        final Entry providers = findProviders(consumerBundle, factoryClassName, factoryClassName);
+        return createXMLFactory(consumerBundle, callSite, providers, factory, startTime);
+    }
+
+    /**
+     * Invoked by a {@link FactoryCallSite} which has been linked to these providers.
+     */
+    static Object createLinkedXMLFactory(
+        @Nonnull Bundle consumerBundle,
+        @Nullable String callSite,
+        @Nonnull Entry providers,
+        Supplier<?> factory
+    ) {
+        return createXMLFactory(consumerBundle, callSite, providers, factory, System.nanoTime());
+    }
 
+    @SuppressWarnings("unchecked")
+    static <X> X createXMLFactory(
+        @Nonnull Bundle consumerBundle,
+        @Nullable String callSite,
+        @Nullable Entry providers,
+        Supplier<X> factory,
+        long startTime
+    ) {
+        try {
+            if (providers == null || !providers.isShared()) {
+                return newXMLFactory(providers, factory);
+            }
+            final Object shared = providers.getSharedFactory();
+            return (X) ((shared != null) ? shared : providers.shareFactory(newXMLFactory(providers, factory)));
+        } finally {
+            factoryCreated(consumerBundle, callSite, startTime);
+        }
+    }
+
+    private static <X> X newXMLFactory(@Nullable Entry providers, Supplier<X> factory) {
+        if (providers != null && providers.getConstructor() != null) {
+            return instantiate(providers.getConstructor());
+        }
+
+        final ClassLoader bundleClassLoader = (providers == null) ? null : providers.getClassLoader();
         final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
         Thread.currentThread().setContextClassLoader(bundleClassLoader);
         try {
@@ -133,41 +275,147 @@ public final class Util {
         }
     }
 
+    /**
+     * Bootstrap method for the {@code INVOKEDYNAMIC} instructions which replace
+     * calls that do not name a factory. See {@link FactoryCallSite}.
+     *
+     * @param name {@code newFactory} or {@code newInstance}.
+     * @param type The type of the call that was replaced, which returns the factory.
+     * @param callSite Identifies this call site, or is empty if we are not profiling call sites.
+     */
+    public static CallSite bootstrapXMLFactory(MethodHandles.Lookup lookup, String name, MethodType type, String callSite) {
+        final String factoryClassName = type.returnType().getName();
+        final Supplier<?> factory = JDK_FACTORIES.get(factoryClassName + '.' + name);
+        if (factory == null || type.parameterCount() != 0) {
+            throw new IllegalArgumentException("Cannot link " + factoryClassName + '.' + name + type);
+        }
+        return new FactoryCallSite(lookup.lookupClass(), callSite.isEmpty() ? null : callSite, factoryClassName, factory, type);
+    }
+
     private static <X> X createXMLFactory(
         String factoryId,
         ClassLoader specifiedClassLoader,
         @Nonnull Class<?> caller,
+        @Nullable String callSite,
         String factoryClassName,
         BiFunction<String, ClassLoader, X> factory
     ) {
-        final ClassLoader bundleLoader = doPrivileged((PrivilegedAction<? extends ClassLoader>)caller::getClassLoader);
-        if (!(bundleLoader instanceof BundleReference)) {
-            logger.log(FINE, "Classloader of consuming bundle doesn't implement BundleReference: {0}", bundleLoader);
+        final Bundle consumerBundle = getConsumerBundle(caller);
+        if (consumerBundle == null) {
             return factory.apply(factoryId, specifiedClassLoader);
         }
 
-        final ClassLoader bundleClassLoader = findContextClassloader(
-            ((BundleReference)bundleLoader).getBundle(), factoryClassName, factoryId
-        );
-        return factory.apply(factoryId, bundleClassLoader == null ?
-            specifiedClassLoader : new WrapperCL(specifiedClassLoader, bundleClassLoader)
-        );
+        final long startTime = System.nanoTime();
+        final Entry providers = findProviders(consumerBundle, factoryClassName, factoryId);
+        final ClassLoader bundleClassLoader = (providers == null) ? null : providers.getClassLoader();
+        try {
+            return factory.apply(factoryId, bundleClassLoader == null ?
+                specifiedClassLoader : getWrapper(providers, specifiedClassLoader)
+            );
+        } finally {
+            factoryCreated(consumerBundle, callSite, startTime);
+        }
     }
 
+    /**
+     * @return The bundle which contains this woven class, or {@code null}
+     * if this class was not loaded by an OSGi bundle.
+     */
     @Nullable
-    private static ClassLoader findContextClassloader(Bundle consumerBundle, String className, String requestedClass) {
-        Collection<Bundle> bundles;
+    static Bundle getConsumerBundle(@Nonnull Class<?> caller) {
+        return CONSUMER_BUNDLES.get(caller);
+    }
+
+    /**
+     * Reuses the same wrapper for as long as the consumer keeps specifying the same class loader.
+     */
+    @Nonnull
+    private static ClassLoader getWrapper(@Nonnull Entry providers, ClassLoader specifiedClassLoader) {
+        final ClassLoader wrapper = providers.getWrapper();
+        if (wrapper instanceof WrapperCL && ((WrapperCL) wrapper).wraps(specifiedClassLoader)) {
+            return wrapper;
+        }
+        final WrapperCL canonical = WRAPPERS.get(specifiedClassLoader, providers.getClassLoader());
+        providers.setWrapper(canonical);
+        return canonical;
+    }
+
+    private static void factoryCreated(Bundle consumerBundle, @Nullable String callSite, long startTime) {
+        final WeavingStatistics statistics = WeavingStatistics.getInstance(consumerBundle);
+        if (statistics != null) {
+            statistics.getCounters(consumerBundle).factoryCreated(callSite, System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * @return The bundles which provide this factory, or {@code null} if we failed to find them.
+     */
+    @Nullable
+    static Entry findProviders(Bundle consumerBundle, String className, String requestedClass) {
+        final FactoryProviderCache cache = FactoryProviderCache.getInstance(consumerBundle);
+        if (cache == null || requestedClass == null) {
+            return resolveProviders(consumerBundle, className, requestedClass, false, Sharing.NONE);
+        }
+
+        final ConcurrentMap<String, Entry> entries = cache.getEntries(consumerBundle, className);
+        Entry entry = entries.get(requestedClass);
+        if (entry == null) {
+            entry = resolveProviders(consumerBundle, className, requestedClass,
+                cache.isDirectInstantiation(), cache.getSharing(consumerBundle));
+            if (entry == null) {
+                return null;
+            }
+            entries.putIfAbsent(requestedClass, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * @param directInstantiation Whether to find the provider's constructor too,
+     * if only because the caller did not request a specific factory.
+     * @param sharing How to share the factories that the caller creates,
+     * if it did not request a specific factory.
+     * @return The context class loader for this factory, or {@code null} if we failed to find one.
+     */
+    @Nullable
+    private static Entry resolveProviders(
+        Bundle consumerBundle,
+        String className,
+        String requestedClass,
+        boolean directInstantiation,
+        Sharing sharing
+    ) {
+        final FactoryResolutionEvent event = new FactoryResolutionEvent();
+        event.begin();
+
+        Set<Bundle> bundles;
+        MethodHandle constructor = null;
         try {
-            bundles = new HashSet<>(getServiceBundles(consumerBundle.getBundleContext(), className));
+            bundles = getServiceBundles(consumerBundle.getBundleContext(), className);
             if (!className.equals(requestedClass)) {
                 bundles.addAll(getServiceBundles(consumerBundle.getBundleContext(), requestedClass));
+            } else if (directInstantiation && !bundles.isEmpty()) {
+                constructor = findProviderConstructor(consumerBundle.getBundleContext(), className);
             }
         } catch (Exception e) {
             logger.log(SEVERE, e, () -> "Failed to query " + className + " services for " + consumerBundle);
+            event.report(consumerBundle, className, emptySet(), false);
             return null;
         }
-        logger.log(FINE, "Found bundles providing {0}: {1}", new Object[] { className, bundles });
+        if (logger.isLoggable(FINE)) {
+            logger.log(FINE, "Found bundles providing {0}: {1}", new Object[] { className, bundles });
+        }
 
+        final ClassLoader contextClassLoader = createContextClassloader(bundles);
+        event.report(consumerBundle, className, bundles, contextClassLoader instanceof MultiDelegationClassloader);
+        if (contextClassLoader == null) {
+            return Entry.NO_PROVIDERS;
+        }
+        return new Entry(contextClassLoader, constructor, className.equals(requestedClass) ? sharing : Sharing.NONE);
+    }
+
+    @Nullable
+    private static ClassLoader createContextClassloader(@Nonnull Collection<Bundle> bundles) {
         switch (bundles.size()) {
         case 0:
             return null;
@@ -175,11 +423,14 @@ public final class Util {
             Bundle bundle = bundles.iterator().next();
             return getBundleClassLoader(bundle);
         default:
-            List<ClassLoader> loaders = new ArrayList<>();
-            for (Bundle b : bundles) {
-                loaders.add(getBundleClassLoader(b));
+            // Always delegate in the same order, so that the same bundles share the same loader.
+            List<Bundle> sorted = new ArrayList<>(bundles);
+            sorted.sort(comparingLong(Bundle::getBundleId));
+            ClassLoader[] loaders = new ClassLoader[sorted.size()];
+            for (int i = 0; i < loaders.length; ++i) {
+                loaders[i] = getBundleClassLoader(sorted.get(i));
             }
-            return new MultiDelegationClassloader(loaders.toArray(new ClassLoader[0]));
+            return MULTI_DELEGATION_LOADERS.get(loaders);
         }
     }
 
@@ -206,18 +457,115 @@ public final class Util {
         return bundles;
     }
 
+    /**
+     * Finds the public no-argument constructor of the implementation class
+     * that the Mediator registered for this factory, preferring the service
+     * with the highest ranking.
+     *
+     * @return The constructor, as a {@code ()Object} handle, or {@code null}
+     * if the Mediator does not tell us the implementation class.
+     */
+    @Nullable
+    private static MethodHandle findProviderConstructor(BundleContext context, String className) throws InvalidSyntaxException {
+        final ServiceReference<?>[] references = context.getServiceReferences(className, PROVIDED_BY_SERVICELOADER_MEDIATOR);
+        if (references == null || references.length == 0) {
+            return null;
+        }
+        final ServiceReference<?> reference = Collections.max(Arrays.asList(references));
+        final Object implClassName = reference.getProperty(PROVIDER_IMPLCLASS_PROPERTY);
+        final Bundle provider = reference.getBundle();
+        if (!(implClassName instanceof String) || provider == null) {
+            return null;
+        }
+
+        try {
+            final Class<?> implClass = provider.loadClass((String) implClassName);
+            if (!implClass.getClassLoader().loadClass(className).isAssignableFrom(implClass)) {
+                return null;
+            }
+            return MethodHandles.publicLookup()
+                .findConstructor(implClass, methodType(void.class))
+                .asType(methodType(Object.class));
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException e) {
+            logger.log(FINE, e, () -> "Cannot instantiate " + implClassName + " directly");
+            return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <X> X instantiate(@Nonnull MethodHandle constructor) {
+        try {
+            return (X) (Object) constructor.invokeExact();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new UndeclaredThrowableException(t);
+        }
+    }
+
     private static ClassLoader getBundleClassLoader(final Bundle bundle) {
         return doPrivileged((PrivilegedAction<ClassLoader>) () -> bundle.adapt(BundleWiring.class).getClassLoader());
     }
 
+    /**
+     * Parallel capable, so that {@link ClassLoader#loadClass(String, boolean)}
+     * only locks each class name while loading that class for the first time.
+     */
     private static class WrapperCL extends ClassLoader {
+        private static final String SERVICES = "META-INF/services/";
+        private static final Object NOT_FOUND = new Object();
+
+        static {
+            registerAsParallelCapable();
+        }
+
+        private final ClassLoader specifiedClassLoader;
         private final ClassLoader bundleClassloader;
+        private final ConcurrentMap<String, Object> classes = new ConcurrentHashMap<>();
+        private final ConcurrentMap<String, List<URL>> services = new ConcurrentHashMap<>();
 
         public WrapperCL(ClassLoader specifiedClassLoader, ClassLoader bundleClassloader) {
             super(specifiedClassLoader);
+            this.specifiedClassLoader = specifiedClassLoader;
             this.bundleClassloader = bundleClassloader;
         }
 
+        boolean wraps(ClassLoader classLoader) {
+            return specifiedClassLoader == classLoader;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            final Object cached = classes.get(name);
+            if (cached instanceof Class) {
+                return (Class<?>) cached;
+            } else if (cached == NOT_FOUND) {
+                throw new MissingClassException(name);
+            }
+
+            try {
+                final Class<?> clazz = super.loadClass(name, resolve);
+                classes.putIfAbsent(name, clazz);
+                return clazz;
+            } catch (ClassNotFoundException e) {
+                classes.putIfAbsent(name, NOT_FOUND);
+                throw e;
+            }
+        }
+
+        @Override
+        public Enumeration<URL> getResources(String name) throws IOException {
+            if (!name.startsWith(SERVICES)) {
+                return Collections.enumeration(MultiDelegationClassloader.distinct(super.getResources(name)));
+            }
+            List<URL> urls = services.get(name);
+            if (urls == null) {
+                urls = MultiDelegationClassloader.distinct(super.getResources(name));
+                services.putIfAbsent(name, urls);
+            }
+            return Collections.enumeration(urls);
+        }
+
         @Override
         protected Class<?> findClass(String name) throws ClassNotFoundException {
             return bundleClassloader.loadClass(name);
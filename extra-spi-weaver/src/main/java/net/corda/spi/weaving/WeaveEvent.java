@@ -0,0 +1,50 @@
+package net.corda.spi.weaving;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.osgi.framework.Bundle;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Records each class that {@link DynamicExtraWeavingHook} inspects.
+ */
+@Name("net.corda.spi.weaving.Weave")
+@Label("Weave Class")
+@Category({ "Corda", "SPI Weaver" })
+@Description("A class from a consumer bundle, inspected by the SPI weaving hook")
+@StackTrace(false)
+final class WeaveEvent extends Event {
+    static final String WOVEN = "Woven";
+    static final String NOT_WOVEN = "Not Woven";
+    static final String REJECTED = "Rejected";
+    static final String FAILED = "Failed";
+
+    @Label("Bundle")
+    String bundle;
+
+    @Label("Bundle Id")
+    long bundleId;
+
+    @Label("Class")
+    String className;
+
+    @Label("Result")
+    @Description("Whether the class was woven. Rejected classes never reference an XML factory.")
+    String result;
+
+    void report(@Nonnull Bundle bundle, String className, String result) {
+        end();
+        if (shouldCommit()) {
+            this.bundle = bundle.getSymbolicName();
+            this.bundleId = bundle.getBundleId();
+            this.className = className;
+            this.result = result;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package net.corda.spi.weaving;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.Comparator.comparingLong;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Counts what the weaver does for each consumer bundle. Every counter is a
+ * {@link LongAdder} or {@link LongAccumulator}, so that threads weaving
+ * classes or creating factories in parallel never contend with each other.
+ */
+final class WeavingStatistics implements WeavingStatisticsMXBean {
+    private static final String OBJECT_NAME = "net.corda.spi-weaver:type=WeavingStatistics,framework=";
+
+    // Woven code reaches these statistics via Util's static methods.
+    private static final FrameworkRegistry<WeavingStatistics> instances = new FrameworkRegistry<>();
+
+    private final BundleIdMap<Counters> bundles = new BundleIdMap<>();
+    private ObjectName objectName;
+
+    /**
+     * @return The statistics for this consumer bundle's framework, or {@code null} if there are none.
+     */
+    @Nullable
+    static WeavingStatistics getInstance(@Nonnull Bundle consumerBundle) {
+        return instances.get(consumerBundle);
+    }
+
+    /**
+     * Registers these statistics with the platform MBean server.
+     */
+    void register(@Nonnull BundleContext context, @Nonnull String frameworkUUID) {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME + ObjectName.quote(frameworkUUID));
+            server.registerMBean(this, name);
+            objectName = name;
+        } catch (JMException | RuntimeException e) {
+            DynamicExtraWeavingActivator.logger.log(WARNING, e, () -> "Cannot register weaving statistics MBean");
+        }
+        instances.register(context, this);
+    }
+
+    void unregister() {
+        instances.unregister(this);
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                DynamicExtraWeavingActivator.logger.log(WARNING, e, () -> "Cannot unregister weaving statistics MBean");
+            }
+            objectName = null;
+        }
+    }
+
+    @Nonnull
+    Counters getCounters(@Nonnull Bundle bundle) {
+        final Counters counters = bundles.get(bundle.getBundleId());
+        if (counters != null) {
+            return counters;
+        }
+        final Counters created = new Counters(bundle);
+        final Counters existing = bundles.putIfAbsent(bundle.getBundleId(), created);
+        return (existing != null) ? existing : created;
+    }
+
+    void remove(@Nonnull Bundle bundle) {
+        bundles.remove(bundle.getBundleId());
+    }
+
+    @Override
+    @Nonnull
+    public List<BundleWeavingStatistics> getBundles() {
+        final List<BundleWeavingStatistics> result = new ArrayList<>();
+        for (Counters counters : bundles.values()) {
+            result.add(counters.snapshot());
+        }
+        result.sort(comparingLong(BundleWeavingStatistics::getBundleId));
+        return result;
+    }
+
+    @Override
+    @Nonnull
+    public List<CallSiteStatistics> getCallSites() {
+        final List<CallSiteStatistics> result = new ArrayList<>();
+        for (Counters counters : bundles.values()) {
+            counters.callSites.forEach((callSite, callSiteCounters) ->
+                result.add(callSiteCounters.snapshot(counters.bundle, callSite))
+            );
+        }
+        result.sort(comparingLong(CallSiteStatistics::getCalls).reversed());
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        bundles.values().forEach(Counters::reset);
+    }
+
+    static final class Counters {
+        private final Bundle bundle;
+        private final LongAdder classesInspected = new LongAdder();
+        private final LongAdder classesWoven = new LongAdder();
+        private final LongAdder bytesIn = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+        private final LongAdder weaveNanos = new LongAdder();
+        private final LongAccumulator maxWeaveNanos = new LongAccumulator(Math::max, 0);
+        private final LongAdder weaveFailures = new LongAdder();
+        private final LongAdder factoryCalls = new LongAdder();
+        private final LongAdder factoryNanos = new LongAdder();
+        private final LongAccumulator maxFactoryNanos = new LongAccumulator(Math::max, 0);
+        private final ConcurrentMap<String, CallSiteCounters> callSites = new ConcurrentHashMap<>();
+
+        Counters(@Nonnull Bundle bundle) {
+            this.bundle = bundle;
+        }
+
+        /**
+         * @param wovenSize The size of the woven class, or {@code -1} if it wasn't woven.
+         */
+        void classInspected(int originalSize, int wovenSize, long nanos) {
+            classesInspected.increment();
+            bytesIn.add(originalSize);
+            if (wovenSize >= 0) {
+                classesWoven.increment();
+                bytesOut.add(wovenSize);
+            }
+            weaveNanos.add(nanos);
+            maxWeaveNanos.accumulate(nanos);
+        }
+
+        void weaveFailed() {
+            weaveFailures.increment();
+        }
+
+        /**
+         * @param callSite Identifies the woven call, if we are profiling call sites.
+         */
+        void factoryCreated(@Nullable String callSite, long nanos) {
+            factoryCalls.increment();
+            factoryNanos.add(nanos);
+            maxFactoryNanos.accumulate(nanos);
+            if (callSite != null) {
+                CallSiteCounters counters = callSites.get(callSite);
+                if (counters == null) {
+                    counters = callSites.computeIfAbsent(callSite, c -> new CallSiteCounters());
+                }
+                counters.record(nanos);
+            }
+        }
+
+        private void reset() {
+            classesInspected.reset();
+            classesWoven.reset();
+            bytesIn.reset();
+            bytesOut.reset();
+            weaveNanos.reset();
+            maxWeaveNanos.reset();
+            weaveFailures.reset();
+            factoryCalls.reset();
+            factoryNanos.reset();
+            maxFactoryNanos.reset();
+            callSites.clear();
+        }
+
+        @Nonnull
+        private BundleWeavingStatistics snapshot() {
+            return new BundleWeavingStatistics(
+                bundle.getBundleId(),
+                bundle.getSymbolicName(),
+                classesInspected.sum(),
+                classesWoven.sum(),
+                bytesIn.sum(),
+                bytesOut.sum(),
+                weaveNanos.sum(),
+                maxWeaveNanos.get(),
+                weaveFailures.sum(),
+                factoryCalls.sum(),
+                factoryNanos.sum(),
+                maxFactoryNanos.get()
+            );
+        }
+    }
+
+    /**
+     * Counts the factories created by a single woven call, along with a
+     * histogram of how long each took. Histogram bucket {@code i} counts
+     * the calls which took fewer than 2<sup>i</sup> microseconds, but
+     * not fewer than 2<sup>i-1</sup>. The final bucket also counts every
+     * call which took longer than that.
+     */
+    private static final class CallSiteCounters {
+        private static final int BUCKETS = 24;
+
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        private final LongAdder[] histogram = new LongAdder[BUCKETS];
+
+        CallSiteCounters() {
+            for (int i = 0; i < BUCKETS; ++i) {
+                histogram[i] = new LongAdder();
+            }
+        }
+
+        void record(long elapsed) {
+            calls.increment();
+            nanos.add(elapsed);
+            maxNanos.accumulate(elapsed);
+            final int bucket = Long.SIZE - Long.numberOfLeadingZeros(elapsed / 1000);
+            histogram[Math.min(bucket, BUCKETS - 1)].increment();
+        }
+
+        @Nonnull
+        CallSiteStatistics snapshot(@Nonnull Bundle bundle, @Nonnull String callSite) {
+            final long[] latencies = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; ++i) {
+                latencies[i] = histogram[i].sum();
+            }
+            return new CallSiteStatistics(bundle.getBundleId(), callSite, calls.sum(), nanos.sum(), maxNanos.get(), latencies);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package net.corda.spi.weaving;
+
+import java.util.List;
+
+/**
+ * What the weaver has done so far, for each consumer bundle.
+ * This is registered as {@code net.corda.spi-weaver:type=WeavingStatistics}
+ * in the platform MBean server, along with the framework's UUID.
+ */
+public interface WeavingStatisticsMXBean {
+    List<BundleWeavingStatistics> getBundles();
+
+    /**
+     * @return Every woven call site which has created an XML factory, busiest first.
+     * This is only populated when {@code net.corda.spi-weaver.profile.call.sites=true}.
+     */
+    List<CallSiteStatistics> getCallSites();
+
+    /**
+     * Sets every counter back to zero.
+     */
+    void reset();
+}
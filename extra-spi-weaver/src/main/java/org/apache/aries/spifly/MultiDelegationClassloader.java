@@ -21,19 +21,36 @@ package org.apache.aries.spifly;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /** A classloader that delegates to a number of other classloaders.
  * This classloader can be used if a single classloader is needed that has
  * vibisility of a number of other classloaders. For example if a Thread Context
  * Classloader is needed that has visibility of a number of bundles so that 
  * ServiceLoader.load() can find all the services provided by these bundles.
+ * <p>
+ * This classloader remembers which classes its delegates could and could not
+ * load, and also which {@code META-INF/services} resources they contain, and
+ * so it should only be used while the delegates' bundles remain resolved.
+ * It is parallel capable, and only locks while loading a class for the first time.
  */
 public class MultiDelegationClassloader extends ClassLoader {
+    private static final String SERVICES = "META-INF/services/";
+    private static final Object NOT_FOUND = new Object();
+
+    static {
+        registerAsParallelCapable();
+    }
+
     private final ClassLoader[] delegates;
+    private final ConcurrentMap<String, Object> classes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, List<URL>> services = new ConcurrentHashMap<>();
     
     public MultiDelegationClassloader(ClassLoader ... classLoaders) {
         if (classLoaders == null) 
@@ -64,24 +81,100 @@ public class MultiDelegationClassloader extends ClassLoader {
     
     @Override
     public Enumeration<URL> getResources(String name) throws IOException {
-        List<URL> urls = new ArrayList<>();
-        
-        for (ClassLoader cl : delegates) {
-            urls.addAll(Collections.list(cl.getResources(name)));
+        if (!name.startsWith(SERVICES)) {
+            return Collections.enumeration(findDistinctResources(name));
+        }
+        List<URL> urls = services.get(name);
+        if (urls == null) {
+            urls = findDistinctResources(name);
+            services.putIfAbsent(name, urls);
         }
         return Collections.enumeration(urls);
     }
-    
+
+    private List<URL> findDistinctResources(String name) throws IOException {
+        Map<String, URL> urls = new LinkedHashMap<>();
+        for (ClassLoader cl : delegates) {
+            addDistinct(urls, cl.getResources(name));
+        }
+        return List.copyOf(urls.values());
+    }
+
+    /**
+     * Several classloaders may well see the same resource, e.g. because they
+     * import the same package, but each URL should only be listed once.
+     */
+    public static List<URL> distinct(Enumeration<URL> resources) {
+        Map<String, URL> urls = new LinkedHashMap<>();
+        addDistinct(urls, resources);
+        return List.copyOf(urls.values());
+    }
+
+    private static void addDistinct(Map<String, URL> urls, Enumeration<URL> resources) {
+        while (resources.hasMoreElements()) {
+            URL url = resources.nextElement();
+            // Comparing URLs with equals() may resolve their host names.
+            urls.putIfAbsent(url.toExternalForm(), url);
+        }
+    }
+
     @Override
     public Class<?> loadClass(String name) throws ClassNotFoundException {
-        ClassNotFoundException lastEx = null;
+        Object cached = classes.get(name);
+        if (cached == null) {
+            synchronized (getClassLoadingLock(name)) {
+                cached = classes.get(name);
+                if (cached == null) {
+                    cached = findDelegatedClass(name);
+                    classes.put(name, cached);
+                }
+            }
+        }
+        if (cached == NOT_FOUND) {
+            throw new MissingClassException(name);
+        }
+        return (Class<?>) cached;
+    }
+
+    /**
+     * Always asks the delegates in order, so that the same delegate wins
+     * no matter which classes were loaded before. We remember the result
+     * for each class, and so this trial and error only happens once.
+     *
+     * @return The class, or {@link #NOT_FOUND}.
+     */
+    private Object findDelegatedClass(String name) {
         for (ClassLoader cl : delegates) {
-            try {
-                return cl.loadClass(name);
-            } catch (ClassNotFoundException e) {
-                lastEx = e;
+            Class<?> clazz = tryLoadClass(cl, name);
+            if (clazz != null) {
+                return clazz;
             }
         }
-        throw lastEx;
+        return NOT_FOUND;
+    }
+
+    private static Class<?> tryLoadClass(ClassLoader cl, String name) {
+        try {
+            return cl.loadClass(name);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reports a class that we already know is missing. Filling in a stack
+     * trace would cost far more than looking the class up did.
+     */
+    public static final class MissingClassException extends ClassNotFoundException {
+        private static final long serialVersionUID = 1L;
+
+        public MissingClassException(String name) {
+            super(name);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
     }
 }
@@ -0,0 +1,35 @@
+package net.corda.spi.perthread;
+
+import org.junit.jupiter.api.Test;
+import org.osgi.framework.FrameworkUtil;
+
+import javax.xml.stream.XMLInputFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * This bundle is an auto consumer with {@code factories=per-thread}.
+ */
+class PerThreadFactoryTest {
+    private static final String WOODSTOX_BSN = "com.fasterxml.woodstox.woodstox-core";
+
+    @Test
+    void testOneFactoryForEachThread() throws Exception {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        assertEquals(WOODSTOX_BSN, FrameworkUtil.getBundle(factory.getClass()).getSymbolicName());
+        assertSame(factory, XMLInputFactory.newFactory());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            XMLInputFactory otherFactory = executor.submit(() -> XMLInputFactory.newFactory()).get();
+            assertNotSame(factory, otherFactory);
+            assertSame(otherFactory, executor.submit(() -> XMLInputFactory.newFactory()).get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package net.corda.spi.providers;
+
+import org.junit.jupiter.api.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.FrameworkUtil;
+
+import javax.xml.stream.XMLInputFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * With {@code net.corda.spi-weaver.direct.instantiation=true}, woven code invokes
+ * the provider's constructor itself, and so ignores the usual system property.
+ */
+class DirectInstantiationTest {
+    private static final String WOODSTOX_BSN = "com.fasterxml.woodstox.woodstox-core";
+    private static final String FACTORY_PROPERTY = XMLInputFactory.class.getName();
+    private static final String JDK_FACTORY = "com.sun.xml.internal.stream.XMLInputFactoryImpl";
+
+    @Test
+    void testSystemProperty() {
+        Bundle bundle = FrameworkUtil.getBundle(getClass());
+        boolean directInstantiation = Boolean.parseBoolean(
+            bundle.getBundleContext().getProperty("net.corda.spi-weaver.direct.instantiation")
+        );
+
+        String previous = System.setProperty(FACTORY_PROPERTY, JDK_FACTORY);
+        try {
+            Bundle provider = FrameworkUtil.getBundle(XMLInputFactory.newFactory().getClass());
+            if (directInstantiation) {
+                assertEquals(WOODSTOX_BSN, provider.getSymbolicName());
+            } else {
+                assertNull(provider);
+            }
+        } finally {
+            if (previous == null) {
+                System.clearProperty(FACTORY_PROPERTY);
+            } else {
+                System.setProperty(FACTORY_PROPERTY, previous);
+            }
+        }
+    }
+}
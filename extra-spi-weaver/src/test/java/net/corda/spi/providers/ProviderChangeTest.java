@@ -0,0 +1,66 @@
+package net.corda.spi.providers;
+
+import org.junit.jupiter.api.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.FrameworkUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.stream.XMLInputFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * Woven code must notice when the bundles which provide a factory change, even
+ * after an {@code INVOKEDYNAMIC} call site has linked itself to the old ones.
+ */
+class ProviderChangeTest {
+    private static final String WOODSTOX_BSN = "com.fasterxml.woodstox.woodstox-core";
+    private static final Logger LOG = LoggerFactory.getLogger(ProviderChangeTest.class);
+
+    @Test
+    void testFactoryFollowsProviders() throws BundleException {
+        assertEquals(WOODSTOX_BSN, getSymbolicName(newFactory()));
+        // Call it again, so that it is linked.
+        assertEquals(WOODSTOX_BSN, getSymbolicName(newFactory()));
+
+        Bundle woodstox = findBundle(WOODSTOX_BSN);
+        woodstox.stop();
+        try {
+            Object factory = newFactory();
+            assertInstanceOf(XMLInputFactory.class, factory);
+            assertNotEquals(WOODSTOX_BSN, getSymbolicName(factory));
+            LOG.info("PROVIDERS XMLInputFactory#newFactory() without woodstox: {}", factory);
+        } finally {
+            woodstox.start();
+        }
+
+        Object factory = newFactory();
+        assertEquals(WOODSTOX_BSN, getSymbolicName(factory));
+        LOG.info("PROVIDERS XMLInputFactory#newFactory() with woodstox again: {}", factory);
+    }
+
+    // Always the same call site.
+    private static XMLInputFactory newFactory() {
+        return XMLInputFactory.newFactory();
+    }
+
+    private Bundle findBundle(String bsn) {
+        for (Bundle bundle : FrameworkUtil.getBundle(getClass()).getBundleContext().getBundles()) {
+            if (bsn.equals(bundle.getSymbolicName())) {
+                return bundle;
+            }
+        }
+        throw new AssertionError("No bundle " + bsn);
+    }
+
+    private static String getSymbolicName(Object obj) {
+        assertNotNull(obj);
+        Bundle bundle = FrameworkUtil.getBundle(obj.getClass());
+        return (bundle == null) ? null : bundle.getSymbolicName();
+    }
+}
@@ -0,0 +1,56 @@
+package net.corda.spi.shared;
+
+import org.junit.jupiter.api.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.FrameworkUtil;
+
+import javax.xml.stream.XMLInputFactory;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * This bundle is an auto consumer with {@code factories=shared}.
+ */
+class SharedFactoryTest {
+    private static final String WOODSTOX_BSN = "com.fasterxml.woodstox.woodstox-core";
+
+    @Test
+    void testSameFactoryEveryTime() throws Exception {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        assertEquals(WOODSTOX_BSN, FrameworkUtil.getBundle(factory.getClass()).getSymbolicName());
+        assertSame(factory, XMLInputFactory.newFactory());
+        assertSame(factory, XMLInputFactory.newInstance());
+        assertSame(factory, CompletableFuture.supplyAsync(() -> XMLInputFactory.newFactory()).get());
+    }
+
+    @Test
+    void testNewFactoryWhenProvidersChange() throws BundleException {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+
+        Bundle woodstox = findBundle(WOODSTOX_BSN);
+        woodstox.stop();
+        try {
+            assertNotSame(factory, XMLInputFactory.newFactory());
+        } finally {
+            woodstox.start();
+        }
+
+        XMLInputFactory newFactory = XMLInputFactory.newFactory();
+        assertNotSame(factory, newFactory);
+        assertEquals(WOODSTOX_BSN, FrameworkUtil.getBundle(newFactory.getClass()).getSymbolicName());
+        assertSame(newFactory, XMLInputFactory.newFactory());
+    }
+
+    private Bundle findBundle(String bsn) {
+        for (Bundle bundle : FrameworkUtil.getBundle(getClass()).getBundleContext().getBundles()) {
+            if (bsn.equals(bundle.getSymbolicName())) {
+                return bundle;
+            }
+        }
+        throw new AssertionError("No bundle " + bsn);
+    }
+}
@@ -0,0 +1,166 @@
+package net.corda.spi.weaving;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BundleIdMapTest {
+    // BundleIdMap's initial capacity.
+    private static final int CAPACITY = 64;
+
+    @Test
+    void testPutGetRemove() {
+        BundleIdMap<String> map = new BundleIdMap<>();
+        assertNull(map.get(1));
+        assertNull(map.putIfAbsent(1, "one"));
+        assertEquals("one", map.putIfAbsent(1, "uno"));
+        assertEquals("one", map.get(1));
+        assertEquals("one", map.put(1, "uno"));
+        assertEquals("uno", map.get(1));
+        assertNull(map.put(2, "two"));
+        assertEquals(List.of("two", "uno"), sorted(map.values()));
+
+        assertEquals("uno", map.remove(1));
+        assertNull(map.remove(1));
+        assertNull(map.get(1));
+        assertEquals("two", map.get(2));
+
+        map.clear();
+        assertNull(map.get(2));
+        assertTrue(map.values().isEmpty());
+    }
+
+    @Test
+    void testRemoveWithinProbeChain() {
+        // Find four bundle IDs which all start probing from the same slot.
+        List<Long> ids = new ArrayList<>();
+        int home = homeOf(0);
+        for (long id = 0; ids.size() < 4; ++id) {
+            if (homeOf(id) == home) {
+                ids.add(id);
+            }
+        }
+
+        BundleIdMap<Long> map = new BundleIdMap<>();
+        for (long id : ids) {
+            map.putIfAbsent(id, id);
+        }
+        // Removing the middle of the chain must not hide the entries after it.
+        assertEquals(ids.get(1), map.remove(ids.get(1)));
+        assertEquals(ids.get(0), map.get(ids.get(0)));
+        assertNull(map.get(ids.get(1)));
+        assertEquals(ids.get(2), map.get(ids.get(2)));
+        assertEquals(ids.get(3), map.get(ids.get(3)));
+
+        assertEquals(ids.get(0), map.remove(ids.get(0)));
+        assertEquals(ids.get(2), map.get(ids.get(2)));
+        assertEquals(ids.get(3), map.get(ids.get(3)));
+        assertNull(map.putIfAbsent(ids.get(1), ids.get(1)));
+        assertEquals(ids.get(1), map.get(ids.get(1)));
+    }
+
+    @Test
+    void testMatchesHashMap() {
+        // So few IDs that their probe chains overlap and wrap around the table.
+        Random random = new Random(42);
+        BundleIdMap<Long> map = new BundleIdMap<>();
+        Map<Long, Long> expected = new HashMap<>();
+        for (int i = 0; i < 200_000; ++i) {
+            long id = random.nextInt(100);
+            switch (random.nextInt(3)) {
+            case 0:
+                assertEquals(expected.putIfAbsent(id, (long) i), map.putIfAbsent(id, (long) i));
+                break;
+            case 1:
+                assertEquals(expected.put(id, (long) i), map.put(id, (long) i));
+                break;
+            default:
+                assertEquals(expected.remove(id), map.remove(id));
+                break;
+            }
+            long probe = random.nextInt(100);
+            assertEquals(expected.get(probe), map.get(probe));
+        }
+        assertEquals(sorted(expected.values()), sorted(map.values()));
+    }
+
+    @Test
+    void testReadersDuringResize() throws Exception {
+        BundleIdMap<Long> map = new BundleIdMap<>();
+        // These entries stay while the writer grows the table around them.
+        for (long id = 0; id < 10; ++id) {
+            map.putIfAbsent(id, id);
+        }
+
+        AtomicBoolean stop = new AtomicBoolean();
+        CountDownLatch started = new CountDownLatch(4);
+        ExecutorService readers = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int r = 0; r < 4; ++r) {
+                results.add(readers.submit(() -> {
+                    started.countDown();
+                    while (!stop.get()) {
+                        for (long id = 0; id < 10; ++id) {
+                            assertEquals(Long.valueOf(id), map.get(id));
+                        }
+                        assertNull(map.get(-1));
+                    }
+                    return null;
+                }));
+            }
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            // The first round grows the table several times, and every
+            // round shifts entries back as it removes them again.
+            for (int round = 0; round < 20; ++round) {
+                for (long id = 10; id < 5000; ++id) {
+                    map.putIfAbsent(id, id);
+                }
+                for (long id = 10; id < 5000; ++id) {
+                    map.remove(id);
+                }
+            }
+            stop.set(true);
+            for (Future<?> result : results) {
+                result.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            stop.set(true);
+            readers.shutdownNow();
+        }
+
+        for (long id = 0; id < 10; ++id) {
+            assertEquals(Long.valueOf(id), map.get(id));
+        }
+    }
+
+    /**
+     * Where BundleIdMap's table starts probing for this bundle ID.
+     */
+    private static int homeOf(long id) {
+        long hash = id * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & (CAPACITY - 1);
+    }
+
+    private static <T extends Comparable<T>> List<T> sorted(Iterable<T> values) {
+        List<T> result = new ArrayList<>();
+        values.forEach(result::add);
+        result.sort(null);
+        return result;
+    }
+}
@@ -0,0 +1,60 @@
+package net.corda.spi.weaving;
+
+import aQute.bnd.header.Attrs;
+import aQute.bnd.header.Parameters;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ConsumerMatcherTest {
+    @Test
+    void testNoConsumers() {
+        assertNull(ConsumerMatcher.compile(null).match("bsn1"));
+        assertNull(ConsumerMatcher.compile(new Parameters()).match("bsn1"));
+    }
+
+    @Test
+    void testNameMatchesAnywhere() {
+        ConsumerMatcher matcher = ConsumerMatcher.compile(new Parameters("bsn1;id=1"));
+        assertEquals("1", idOf(matcher.match("bsn1")));
+        assertEquals("1", idOf(matcher.match("xbsn1y")));
+        assertNull(matcher.match("bsn2"));
+        assertNull(matcher.match(null));
+    }
+
+    @Test
+    void testGlobMatchesAnywhere() {
+        ConsumerMatcher matcher = ConsumerMatcher.compile(new Parameters("foo.*;id=1,*.bar;id=2,a?c;id=3"));
+        assertEquals("1", idOf(matcher.match("foo.baz")));
+        assertEquals("1", idOf(matcher.match("zfoo.baz")));
+        assertEquals("2", idOf(matcher.match("com.bar")));
+        assertEquals("2", idOf(matcher.match("com.barn")));
+        assertEquals("3", idOf(matcher.match("xabcx")));
+        assertNull(matcher.match("foo"));
+        assertNull(matcher.match("ac"));
+    }
+
+    @Test
+    void testFirstMatchWins() {
+        ConsumerMatcher matcher = ConsumerMatcher.compile(new Parameters("com.*;id=1,com.example;id=2,c?m;id=3"));
+        assertEquals("1", idOf(matcher.match("com.example")));
+
+        matcher = ConsumerMatcher.compile(new Parameters("c?m.e*;id=1,com.example;id=2,com.*;id=3"));
+        assertEquals("1", idOf(matcher.match("com.example")));
+        assertEquals("3", idOf(matcher.match("com.other")));
+
+        matcher = ConsumerMatcher.compile(new Parameters("example;id=1,com.*;id=2"));
+        assertEquals("1", idOf(matcher.match("com.example")));
+    }
+
+    @Test
+    void testInvalidGlobIsIgnored() {
+        ConsumerMatcher matcher = ConsumerMatcher.compile(new Parameters("a[b;id=1,bsn1;id=2"));
+        assertEquals("2", idOf(matcher.match("a[bsn1")));
+    }
+
+    private static String idOf(Attrs attrs) {
+        return (attrs == null) ? null : attrs.get("id");
+    }
+}
@@ -0,0 +1,170 @@
+package net.corda.spi.weaving;
+
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.ConstantDynamic;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+import static org.objectweb.asm.Opcodes.ARETURN;
+import static org.objectweb.asm.Opcodes.GETSTATIC;
+import static org.objectweb.asm.Opcodes.H_INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.POP;
+import static org.objectweb.asm.Opcodes.POP2;
+import static org.objectweb.asm.Opcodes.V11;
+
+class FactoryCallScannerTest {
+    private static final List<String> FACTORY_TYPES = List.of(
+        "javax/xml/stream/XMLInputFactory",
+        "javax/xml/stream/XMLOutputFactory",
+        "javax/xml/stream/XMLEventFactory"
+    );
+    private static final List<String> FACTORY_NAMES = List.of("newFactory", "newInstance");
+
+    private static final Handle BOOTSTRAP = new Handle(H_INVOKESTATIC, "example/Bootstrap", "bootstrap",
+        "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;)Ljava/lang/Object;", false);
+
+    @Test
+    void testEveryFactoryMethod() {
+        for (String type : FACTORY_TYPES) {
+            for (String name : FACTORY_NAMES) {
+                final String descriptor = "()L" + type + ';';
+                assertTrue(mayInvokeFactory(mv -> mv.visitMethodInsn(INVOKESTATIC, type, name, descriptor, false)),
+                    type + '.' + name);
+                final String customDescriptor = "(Ljava/lang/String;Ljava/lang/ClassLoader;)L" + type + ';';
+                assertTrue(mayInvokeFactory(mv -> mv.visitMethodInsn(INVOKESTATIC, type, name, customDescriptor, false)),
+                    type + '.' + name + " with a custom factory");
+            }
+        }
+    }
+
+    @Test
+    void testInterfaceMethodref() {
+        // The factories are classes, but the scanner must
+        // still find them as interface method references.
+        assertTrue(mayInvokeFactory(mv -> mv.visitMethodInsn(INVOKESTATIC,
+            "javax/xml/stream/XMLInputFactory", "newFactory", "()Ljavax/xml/stream/XMLInputFactory;", true)));
+        assertFalse(mayInvokeFactory(mv -> mv.visitMethodInsn(INVOKESTATIC,
+            "java/util/List", "of", "()Ljava/util/List;", true)));
+    }
+
+    @Test
+    void testOtherMethods() {
+        assertFalse(mayInvokeFactory(mv -> { }));
+        assertFalse(mayInvokeFactory(mv -> mv.visitMethodInsn(INVOKESTATIC,
+            "javax/xml/stream/XMLInputFactory", "newDefaultFactory", "()Ljavax/xml/stream/XMLInputFactory;", false)));
+        assertFalse(mayInvokeFactory(mv -> mv.visitMethodInsn(INVOKESTATIC,
+            "javax/xml/stream/XMLInputFactory2", "newFactory", "()Ljavax/xml/stream/XMLInputFactory;", false)));
+        assertFalse(mayInvokeFactory(mv -> mv.visitMethodInsn(INVOKESTATIC,
+            "example/Factories", "newInstance", "()Ljavax/xml/stream/XMLInputFactory;", false)));
+
+        // Neither the owner and name strings by themselves, nor a
+        // field with the same name, are references to a factory method.
+        assertFalse(mayInvokeFactory(mv -> {
+            mv.visitLdcInsn("javax/xml/stream/XMLInputFactory");
+            mv.visitLdcInsn("newFactory");
+            mv.visitFieldInsn(GETSTATIC, "javax/xml/stream/XMLInputFactory", "newFactory", "Ljava/lang/Object;");
+        }));
+    }
+
+    @Test
+    void testLongAndDoubleTakeTwoSlots() {
+        // These constants come before the method reference in the constant pool,
+        // so that it can only be found by skipping both of their slots.
+        assertTrue(mayInvokeFactory(mv -> {
+            mv.visitLdcInsn(0x1234_5678_9ABC_DEF0L);
+            mv.visitInsn(POP2);
+            mv.visitLdcInsn(Math.PI);
+            mv.visitInsn(POP2);
+            mv.visitMethodInsn(INVOKESTATIC,
+                "javax/xml/stream/XMLOutputFactory", "newInstance", "()Ljavax/xml/stream/XMLOutputFactory;", false);
+        }));
+        assertFalse(mayInvokeFactory(mv -> {
+            mv.visitLdcInsn(0x1234_5678_9ABC_DEF0L);
+            mv.visitInsn(POP2);
+            mv.visitLdcInsn(Math.PI);
+            mv.visitInsn(POP2);
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "random", "()D", false);
+        }));
+    }
+
+    @Test
+    void testDynamicConstants() {
+        assertTrue(mayInvokeFactory(mv -> {
+            mv.visitLdcInsn(new ConstantDynamic("constant", "Ljava/lang/Object;", BOOTSTRAP));
+            mv.visitInsn(POP);
+            mv.visitInvokeDynamicInsn("call", "()Ljava/lang/Object;", BOOTSTRAP);
+            mv.visitInsn(POP);
+            mv.visitMethodInsn(INVOKESTATIC,
+                "javax/xml/stream/XMLEventFactory", "newFactory", "()Ljavax/xml/stream/XMLEventFactory;", false);
+        }));
+
+        // An invokedynamic instruction is not a method reference, even if it has the
+        // same name, and neither is the bootstrap method that it references.
+        assertFalse(mayInvokeFactory(mv -> {
+            mv.visitLdcInsn(new ConstantDynamic("newFactory", "Ljavax/xml/stream/XMLInputFactory;", BOOTSTRAP));
+            mv.visitInsn(POP);
+            mv.visitInvokeDynamicInsn("newFactory", "()Ljavax/xml/stream/XMLInputFactory;", BOOTSTRAP);
+        }));
+    }
+
+    @Test
+    void testTruncatedClass() {
+        final byte[] classBytes = classFile(mv -> {
+            mv.visitLdcInsn(0x1234_5678_9ABC_DEF0L);
+            mv.visitInsn(POP2);
+            mv.visitLdcInsn("a string constant");
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "random", "()D", false);
+        });
+        assertFalse(FactoryCallScanner.mayInvokeFactory(classBytes));
+
+        // Everything up to here is either the header or the constant pool.
+        final int constantPoolEnd = new ClassReader(classBytes).header;
+        for (int length = 0; length < constantPoolEnd; ++length) {
+            assertTrue(FactoryCallScanner.mayInvokeFactory(Arrays.copyOf(classBytes, length)), "length " + length);
+        }
+    }
+
+    @Test
+    void testNotAClass() {
+        assertTrue(FactoryCallScanner.mayInvokeFactory(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12 }));
+    }
+
+    @Test
+    void testUnknownConstant() {
+        final byte[] classBytes = classFile(mv -> { });
+        // Replace the first constant's tag with one that no class file uses.
+        classBytes[FactoryCallScanner.CONSTANT_POOL_OFFSET] = 99;
+        assertTrue(FactoryCallScanner.mayInvokeFactory(classBytes));
+    }
+
+    private static boolean mayInvokeFactory(Consumer<MethodVisitor> body) {
+        return FactoryCallScanner.mayInvokeFactory(classFile(body));
+    }
+
+    /**
+     * The scanner only reads the constant pool, and so this method's code does not need to verify.
+     */
+    private static byte[] classFile(Consumer<MethodVisitor> body) {
+        final ClassWriter cw = new ClassWriter(0);
+        cw.visit(V11, ACC_PUBLIC, "example/Consumer", null, "java/lang/Object", null);
+        final MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "run", "()Ljava/lang/Object;", null, null);
+        mv.visitCode();
+        body.accept(mv);
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(4, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+}
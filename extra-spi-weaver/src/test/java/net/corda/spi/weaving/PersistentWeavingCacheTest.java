@@ -0,0 +1,255 @@
+package net.corda.spi.weaving;
+
+import net.corda.spi.weaving.PersistentWeavingCache.Verdict;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static net.corda.spi.weaving.ClassDigester.KEY_SIZE;
+import static net.corda.spi.weaving.PersistentWeavingCache.NOT_WOVEN;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PersistentWeavingCacheTest {
+    private static final String CACHE_FILE_NAME = "woven-classes.bin";
+    private static final int HEADER_SIZE = 8;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void testRoundTrip() throws IOException {
+        try (PersistentWeavingCache cache = open()) {
+            assertNull(cache.get(key(1)));
+            cache.put(key(1), woven(1));
+            cache.put(key(2), NOT_WOVEN);
+
+            assertWoven(1, cache.get(key(1)));
+            assertSame(NOT_WOVEN, cache.get(key(2)));
+            assertNull(cache.get(key(3)));
+        }
+    }
+
+    @Test
+    void testRecordFormat() throws IOException {
+        try (PersistentWeavingCache cache = open()) {
+            cache.put(key(1), woven(1));
+        }
+
+        final ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(cacheFile()));
+        assertEquals(0x53504957, file.getInt());
+        assertEquals(2, file.getInt());
+        final int length = file.getInt();
+        assertEquals(0, (Integer.BYTES + length) % 8);
+        final byte[] key = new byte[KEY_SIZE];
+        file.get(key);
+        assertArrayEquals(key(1).array(), key);
+        assertEquals(1, file.get());
+        // The next record's length is zero until it has been written.
+        assertEquals(0, file.getInt(HEADER_SIZE + Integer.BYTES + length));
+    }
+
+    @Test
+    void testReopen() throws IOException {
+        try (PersistentWeavingCache cache = open()) {
+            for (int i = 0; i < 1000; ++i) {
+                cache.put(key(i), (i % 2 == 0) ? woven(i) : NOT_WOVEN);
+            }
+        }
+        try (PersistentWeavingCache cache = open()) {
+            for (int i = 0; i < 1000; ++i) {
+                if (i % 2 == 0) {
+                    assertWoven(i, cache.get(key(i)));
+                } else {
+                    assertSame(NOT_WOVEN, cache.get(key(i)));
+                }
+            }
+        }
+    }
+
+    @Test
+    void testUnfinishedRecordIsOverwritten() throws IOException {
+        try (PersistentWeavingCache cache = open()) {
+            cache.put(key(1), woven(1));
+        }
+        // A process died after writing most of a long record, but before its length.
+        // Read from anywhere else, its contents look like a series of short records.
+        final int end = endOfFirstRecord();
+        final ByteBuffer garbage = ByteBuffer.allocate(Integer.BYTES + 4096);
+        garbage.position(Integer.BYTES);
+        while (garbage.hasRemaining()) {
+            garbage.putInt(KEY_SIZE + Integer.BYTES);
+        }
+        write(garbage.flip(), end);
+        final ByteBuffer garbageKey = ByteBuffer.allocate(KEY_SIZE);
+        while (garbageKey.hasRemaining()) {
+            garbageKey.putInt(KEY_SIZE + Integer.BYTES);
+        }
+
+        try (PersistentWeavingCache cache = open()) {
+            assertWoven(1, cache.get(key(1)));
+            cache.put(key(2), NOT_WOVEN);
+            cache.put(key(3), woven(3));
+            assertNull(cache.get(garbageKey));
+        }
+        try (PersistentWeavingCache cache = open()) {
+            assertWoven(1, cache.get(key(1)));
+            assertSame(NOT_WOVEN, cache.get(key(2)));
+            assertWoven(3, cache.get(key(3)));
+            assertNull(cache.get(garbageKey));
+        }
+    }
+
+    @Test
+    void testTruncatedRecordIsOverwritten() throws IOException {
+        try (PersistentWeavingCache cache = open()) {
+            cache.put(key(1), woven(1));
+            cache.put(key(2), woven(2));
+        }
+        try (FileChannel channel = FileChannel.open(cacheFile(), WRITE)) {
+            channel.truncate(endOfFirstRecord() + 10);
+        }
+
+        try (PersistentWeavingCache cache = open()) {
+            assertWoven(1, cache.get(key(1)));
+            assertNull(cache.get(key(2)));
+            cache.put(key(2), woven(2));
+        }
+        try (PersistentWeavingCache cache = open()) {
+            assertWoven(1, cache.get(key(1)));
+            assertWoven(2, cache.get(key(2)));
+        }
+    }
+
+    @Test
+    void testKeysWithTheSamePrefix() throws IOException {
+        final ByteBuffer first = key(1);
+        final ByteBuffer second = key(1);
+        second.put(KEY_SIZE - 1, (byte) (second.get(KEY_SIZE - 1) + 1));
+
+        try (PersistentWeavingCache cache = open()) {
+            cache.put(first, woven(1));
+            assertNull(cache.get(second));
+            // The index only has room for one of these, but we never confuse them.
+            cache.put(second, woven(2));
+            assertWoven(1, cache.get(first));
+            final Verdict verdict = cache.get(second);
+            if (verdict != null) {
+                assertWoven(2, verdict);
+            }
+        }
+    }
+
+    @Test
+    void testFrameworksShareTheCache() throws IOException {
+        final PersistentWeavingCache first = open();
+        final PersistentWeavingCache second = open();
+        assertSame(first, second);
+
+        first.put(key(1), woven(1));
+        first.close();
+        assertWoven(1, second.get(key(1)));
+        second.put(key(2), woven(2));
+        second.close();
+
+        try (PersistentWeavingCache cache = open()) {
+            assertNotSame(first, cache);
+            assertWoven(1, cache.get(key(1)));
+            assertWoven(2, cache.get(key(2)));
+        }
+    }
+
+    @Test
+    void testClosedCacheIsEmpty() throws IOException {
+        final PersistentWeavingCache cache = open();
+        cache.put(key(1), woven(1));
+        cache.close();
+
+        assertNull(cache.get(key(2)));
+        cache.put(key(2), woven(2));
+        try (PersistentWeavingCache reopened = open()) {
+            assertNull(reopened.get(key(2)));
+        }
+    }
+
+    @Test
+    void testCorruptRecordIsAMiss() throws IOException {
+        try (PersistentWeavingCache cache = open()) {
+            cache.put(key(1), woven(1));
+            // Claim far more dynamic imports than the record contains.
+            write(ByteBuffer.allocate(Short.BYTES).putShort((short) -1).flip(), HEADER_SIZE + Integer.BYTES + KEY_SIZE + 1);
+
+            assertNull(cache.get(key(1)));
+            // The cache has given up, but still accepts verdicts.
+            cache.put(key(2), woven(2));
+            assertNull(cache.get(key(2)));
+        }
+    }
+
+    @Test
+    void testUnrecognisedFile() throws IOException {
+        Files.write(cacheFile(), new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+        assertNull(PersistentWeavingCache.open(directory));
+    }
+
+    private PersistentWeavingCache open() {
+        final PersistentWeavingCache cache = PersistentWeavingCache.open(directory);
+        assertNotNull(cache);
+        return cache;
+    }
+
+    private Path cacheFile() {
+        return directory.resolve(CACHE_FILE_NAME);
+    }
+
+    private int endOfFirstRecord() throws IOException {
+        final ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+        try (FileChannel channel = FileChannel.open(cacheFile(), READ)) {
+            channel.read(length, HEADER_SIZE);
+        }
+        return HEADER_SIZE + Integer.BYTES + length.flip().getInt();
+    }
+
+    private void write(ByteBuffer buffer, long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(cacheFile(), WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, position + buffer.position());
+            }
+        }
+    }
+
+    private static ByteBuffer key(int seed) {
+        final byte[] key = new byte[KEY_SIZE];
+        for (int i = 0; i < KEY_SIZE; ++i) {
+            key[i] = (byte) (seed * 31 + i * 17);
+        }
+        ByteBuffer.wrap(key).putInt(0, seed);
+        return ByteBuffer.wrap(key);
+    }
+
+    private static Verdict woven(int seed) {
+        final byte[] bytes = new byte[seed % 100 + 1];
+        bytes[0] = (byte) seed;
+        return new Verdict(true, bytes, List.of("com.example.p" + seed));
+    }
+
+    private static void assertWoven(int seed, Verdict verdict) {
+        assertNotNull(verdict);
+        assertTrue(verdict.isWoven());
+        assertArrayEquals(woven(seed).getBytes(), verdict.getBytes());
+        assertEquals(List.of("com.example.p" + seed), verdict.getDynamicImports());
+    }
+}
@@ -0,0 +1,43 @@
+package net.corda.spi.woven;
+
+import org.junit.jupiter.api.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.FrameworkUtil;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.xml.stream.XMLInputFactory;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.osgi.framework.Constants.FRAMEWORK_UUID;
+
+class WeavingStatisticsTest {
+    @Test
+    void testStatisticsForThisBundle() throws Exception {
+        assertNotNull(XMLInputFactory.newFactory());
+
+        Bundle bundle = FrameworkUtil.getBundle(getClass());
+        CompositeData statistics = getStatistics(bundle);
+        assertNotNull(statistics, "No statistics for " + bundle);
+        assertEquals(bundle.getSymbolicName(), statistics.get("symbolicName"));
+        assertTrue((Long) statistics.get("classesWoven") > 0);
+        assertTrue((Long) statistics.get("bytesOut") > 0);
+        assertTrue((Long) statistics.get("factoryCalls") > 0);
+        assertEquals(0L, statistics.get("weaveFailures"));
+    }
+
+    private static CompositeData getStatistics(Bundle bundle) throws Exception {
+        ObjectName name = new ObjectName("net.corda.spi-weaver:type=WeavingStatistics,framework="
+            + ObjectName.quote(bundle.getBundleContext().getProperty(FRAMEWORK_UUID)));
+        CompositeData[] bundles = (CompositeData[]) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Bundles");
+        for (CompositeData data : bundles) {
+            if (bundle.getBundleId() == (Long) data.get("bundleId")) {
+                return data;
+            }
+        }
+        return null;
+    }
+}